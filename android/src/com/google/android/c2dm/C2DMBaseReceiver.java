@@ -17,6 +17,9 @@
 package com.google.android.c2dm;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import android.app.AlarmManager;
 import android.app.IntentService;
@@ -60,6 +63,11 @@ public abstract class C2DMBaseReceiver extends IntentService {
     private static PowerManager.WakeLock mWakeLock;
     private final String senderId;
 
+    // Messages that have arrived but not been handled yet. Each message intent
+    // is still queued by the IntentService as normal, but the first one handled
+    // drains everything that has piled up, so a burst is processed as a batch.
+    private final ConcurrentLinkedQueue<Intent> pendingMessages = new ConcurrentLinkedQueue<Intent>();
+
     /**
      * The C2DMReceiver class must create a no-arg constructor and pass the 
      * sender id to be used for registration.
@@ -75,6 +83,17 @@ public abstract class C2DMBaseReceiver extends IntentService {
      */
     protected abstract void onMessage(Context context, Intent intent);
 
+    /**
+     * Called with all the cloud messages that have arrived since the last
+     * batch, in the order they arrived. By default, this calls onMessage()
+     * for each one; override to handle them together.
+     */
+    protected void onMessages(Context context, List<Intent> intents) {
+        for (Intent intent : intents) {
+            onMessage(context, intent);
+        }
+    }
+
     /**
      * Called on registration error. Override to provide better
      * error messages.
@@ -104,7 +123,16 @@ public abstract class C2DMBaseReceiver extends IntentService {
             if (intent.getAction().equals(REGISTRATION_CALLBACK_INTENT)) {
                 handleRegistration(context, intent);
             } else if (intent.getAction().equals(C2DM_INTENT)) {
-                onMessage(context, intent);
+                // This intent may already have been handled with an earlier
+                // batch, in which case there is nothing left to do.
+                List<Intent> batch = new ArrayList<Intent>();
+                Intent pending;
+                while ((pending = pendingMessages.poll()) != null) {
+                    batch.add(pending);
+                }
+                if (!batch.isEmpty()) {
+                    onMessages(context, batch);
+                }
             } else if (intent.getAction().equals(C2DM_RETRY)) {
                 C2DMessaging.register(context, senderId);
             }
@@ -119,6 +147,13 @@ public abstract class C2DMBaseReceiver extends IntentService {
         }
     }
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && C2DM_INTENT.equals(intent.getAction())) {
+            pendingMessages.add(intent);
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
     
     /**
      * Called from the broadcast receiver. 
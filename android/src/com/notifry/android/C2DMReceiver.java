@@ -19,6 +19,10 @@
 package com.notifry.android;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 import org.apache.http.ParseException;
 
@@ -26,6 +30,7 @@ import com.google.android.c2dm.C2DMBaseReceiver;
 
 import com.notifry.android.database.NotifryAccount;
 import com.notifry.android.database.NotifryMessage;
+import com.notifry.android.database.RecentMessages;
 
 import android.content.Context;
 import android.content.Intent;
@@ -65,45 +70,158 @@ public class C2DMReceiver extends C2DMBaseReceiver
 		context.sendBroadcast(updateUIIntent);
 	}
 
-	protected void onMessage( Context context, Intent intent )
+	/**
+	 * Handle a batch of messages from the server. Notifications are saved
+	 * together in one transaction, and the notification service is told about
+	 * them once per source rather than once per message.
+	 */
+	@Override
+	protected void onMessages( Context context, List<Intent> intents )
 	{
-		Bundle extras = intent.getExtras();
+		ArrayList<NotifryMessage> messages = new ArrayList<NotifryMessage>();
 		
-		// The server would have sent a message type.
-		String type = extras.getString("type");
-		
-		if( type.equals("message") )
+		for( Intent intent: intents )
 		{
-			// Fetch the message out into a NotifryMessage object.
-			try
+			Bundle extras = intent.getExtras();
+			if( "message".equals(extras.getString("type")) )
 			{
-				NotifryMessage message = NotifryMessage.fromC2DM(context, extras);
-				
-				Log.d("Notifry", "We've been notifried! " + message.getMessage());
+				// Drop messages we've only just received - the server or the push
+				// service has delivered them again.
+				if( this.isRecent(extras) )
+				{
+					Log.d(TAG, "Dropping repeated message: server ID " + extras.getString("server_id"));
+					continue;
+				}
 				
-				// Persist this message to the database.
-				message.save(context);
-				
-				// Send a notification to the notification service, which will then
-				// dispatch and handle everything else.
-				Intent intentData = new Intent(getBaseContext(), NotificationService.class);
-				intentData.putExtra("messageId", message.getId());
-				intentData.putExtra("operation", "notifry");
-				startService(intentData);
+				NotifryMessage message = this.parseMessage(context, extras);
+				if( message != null )
+				{
+					messages.add(message);
+				}
+			}
+			else
+			{
+				try
+				{
+					this.onMessage(context, intent);
+				}
+				catch( NumberFormatException ex )
+				{
+					// Don't let one bad control message lose the rest of the batch.
+					Log.e(TAG, "Failed to parse an ID - malformed " + extras.getString("type") + " message from server: " + ex.getMessage());
+				}
 			}
-			catch( ParseException ex )
+		}
+		
+		// Drop any that are repeated in this batch, or were stored before
+		// the recent messages list knew about them.
+		messages = NotifryMessage.FACTORY.withoutDuplicates(context, messages);
+		
+		if( messages.size() == 0 )
+		{
+			return;
+		}
+		
+		Log.d(TAG, "We've been notifried! " + messages.size() + " messages in this batch.");
+		
+		// Persist the messages to the database, all at once.
+		NotifryMessage.FACTORY.saveAll(context, messages);
+		for( NotifryMessage message: messages )
+		{
+			RecentMessages.add(message.getSource().getServerId(), message.getServerId());
+		}
+		
+		// Group the messages by source.
+		LinkedHashMap<Long, ArrayList<Long>> bySource = new LinkedHashMap<Long, ArrayList<Long>>();
+		for( NotifryMessage message: messages )
+		{
+			ArrayList<Long> ids = bySource.get(message.getSource().getId());
+			if( ids == null )
 			{
-				// Failed to parse a Long.
-				Log.e(TAG, "Failed to parse a long - malformed message from server: " + ex.getMessage());
+				ids = new ArrayList<Long>();
+				bySource.put(message.getSource().getId(), ids);
 			}
-			catch( NotifryMessage.UnsourceableMessage ex )
+			ids.add(message.getId());
+		}
+		
+		// And send one request to the notification service for each source.
+		for( ArrayList<Long> ids: bySource.values() )
+		{
+			long[] messageIds = new long[ids.size()];
+			for( int i = 0; i < messageIds.length; i++ )
 			{
-				// Hmm... a message there was no way to find a source for.
-				// Don't do anything - but do log it.
-				Long accountId = Long.parseLong(extras.getString("device_id"));
-				Long sourceId = Long.parseLong(extras.getString("source_id"));
-				Log.d(TAG, "Unsourceable message: source ID " + sourceId + " device ID " + accountId);
+				messageIds[i] = ids.get(i);
 			}
+			
+			Intent intentData = new Intent(getBaseContext(), NotificationService.class);
+			intentData.putExtra("messageIds", messageIds);
+			intentData.putExtra("operation", "notifry");
+			startService(intentData);
+		}
+	}
+	
+	/**
+	 * Check if the message from the server was received recently.
+	 * @param extras
+	 * @return
+	 */
+	private boolean isRecent( Bundle extras )
+	{
+		try
+		{
+			return RecentMessages.contains(Long.parseLong(extras.getString("source_id")), Long.parseLong(extras.getString("server_id")));
+		}
+		catch( NumberFormatException ex )
+		{
+			// Let the parser deal with it.
+			return false;
+		}
+	}
+	
+	/**
+	 * Parse a message from the server into a NotifryMessage object.
+	 * @param context
+	 * @param extras
+	 * @return The message, or NULL if it could not be parsed or sourced.
+	 */
+	private NotifryMessage parseMessage( Context context, Bundle extras )
+	{
+		try
+		{
+			return NotifryMessage.fromC2DM(context, extras);
+		}
+		catch( ParseException ex )
+		{
+			// Failed to parse a Long.
+			Log.e(TAG, "Failed to parse a long - malformed message from server: " + ex.getMessage());
+		}
+		catch( NumberFormatException ex )
+		{
+			// A bad ID - skip just this message, not the rest of the batch.
+			Log.e(TAG, "Failed to parse an ID - malformed message from server: " + ex.getMessage());
+		}
+		catch( NotifryMessage.UnsourceableMessage ex )
+		{
+			// Hmm... a message there was no way to find a source for.
+			// Don't do anything - but do log it. The IDs are logged as sent,
+			// as they may not even be numbers.
+			Log.d(TAG, "Unsourceable message: source ID " + extras.getString("source_id") + " device ID " + extras.getString("device_id"));
+		}
+		
+		return null;
+	}
+
+	protected void onMessage( Context context, Intent intent )
+	{
+		Bundle extras = intent.getExtras();
+		
+		// The server would have sent a message type.
+		String type = extras.getString("type");
+		
+		if( type.equals("message") )
+		{
+			// Handle it as a batch of one.
+			this.onMessages(context, Collections.singletonList(intent));
 		}
 		else if( type.equals("refreshall") )
 		{
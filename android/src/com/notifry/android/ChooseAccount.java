@@ -212,7 +212,17 @@ public class ChooseAccount extends SherlockListActivity implements CompoundButto
 			BackendResponse response = (BackendResponse) msg.obj;
 
 			// Was it successful?
-			if( response.isError() )
+			if( response.isError() && response.isRetryable() )
+			{
+				// Couldn't get through. Keep trying in the background.
+				BackendRequest request = response.getRequest();
+				NotifryAccount account = (NotifryAccount) request.getMeta("account");
+				String operation = (String) request.getMeta("operation");
+				UpdaterService.queue(thisActivity, operation, account.getAccountName(), account.getAccountName(), request);
+
+				Toast.makeText(thisActivity, getString(R.string.queued_for_retry), Toast.LENGTH_LONG).show();
+			}
+			else if( response.isError() )
 			{
 				// No, not successful.
 				Toast.makeText(thisActivity, response.getError() + " - Please try again.", Toast.LENGTH_LONG).show();
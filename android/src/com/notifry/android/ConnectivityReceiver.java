@@ -0,0 +1,70 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.notifry.android;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Restarts the outbox when the network comes back. It's only enabled while
+ * there are backend operations waiting for a connection, so we aren't woken
+ * up for every connectivity change otherwise.
+ */
+public class ConnectivityReceiver extends BroadcastReceiver
+{
+	@Override
+	public void onReceive( Context context, Intent intent )
+	{
+		if( ConnectivityReceiver.isConnected(context) )
+		{
+			Intent intentData = new Intent(context, UpdaterService.class);
+			intentData.putExtra("type", "outbox");
+			context.startService(intentData);
+		}
+	}
+
+	/**
+	 * Check if we have a network connection.
+	 * @param context
+	 * @return
+	 */
+	public static boolean isConnected( Context context )
+	{
+		ConnectivityManager manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo network = manager.getActiveNetworkInfo();
+		return network != null && network.isConnected();
+	}
+
+	/**
+	 * Turn this receiver on or off.
+	 * @param context
+	 * @param enabled
+	 */
+	public static void setEnabled( Context context, boolean enabled )
+	{
+		int state = enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED : PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
+		ComponentName component = new ComponentName(context, ConnectivityReceiver.class);
+		context.getPackageManager().setComponentEnabledSetting(component, state, PackageManager.DONT_KILL_APP);
+	}
+}
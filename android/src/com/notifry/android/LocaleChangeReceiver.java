@@ -0,0 +1,39 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.notifry.android;
+
+import com.notifry.android.database.TimestampCodec;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Forgets the formatted message times when the time zone or locale changes,
+ * so they're shown in the new one.
+ */
+public class LocaleChangeReceiver extends BroadcastReceiver
+{
+	@Override
+	public void onReceive( Context context, Intent intent )
+	{
+		TimestampCodec.invalidate();
+	}
+}
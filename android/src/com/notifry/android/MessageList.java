@@ -18,24 +18,16 @@
 
 package com.notifry.android;
 
-import java.text.ParseException;
-
 import com.actionbarsherlock.app.SherlockListActivity;
 import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuItem;
-import com.notifry.android.database.NotifryDatabaseAdapter;
 import com.notifry.android.database.NotifryMessage;
 import com.notifry.android.database.NotifrySource;
 
 import android.content.Intent;
-import android.database.Cursor;
-import android.graphics.Typeface;
 import android.os.Bundle;
-import android.util.Log;
 import android.view.View;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
-import android.widget.TextView;
 
 public class MessageList extends SherlockListActivity
 {
@@ -44,6 +36,7 @@ public class MessageList extends SherlockListActivity
 	private final static int MARK_ALL_AS_SEEN = 3;
 	private final static int GO_HOME = 4;
 	private NotifrySource source = null;
+	private PagedMessageAdapter adapter = null;
 
 	/** Called when the activity is first created. */
 	public void onCreate( Bundle savedInstanceState )
@@ -58,20 +51,28 @@ public class MessageList extends SherlockListActivity
 	
 	public void refreshView()
 	{
-		// Set up our cursor and list adapter. This automatically updates
-		// as messages are updated and changed.
-		Cursor cursor = NotifryMessage.FACTORY.cursorList(this, this.getSource());
-		this.startManagingCursor(cursor);
-		SimpleCursorAdapter adapter = new SimpleCursorAdapter(
-				this,
-				R.layout.message_list_row,
-				cursor,
-				new String[] { NotifryDatabaseAdapter.KEY_TITLE, NotifryDatabaseAdapter.KEY_TIMESTAMP, NotifryDatabaseAdapter.KEY_SEEN },
-				new int[] { R.id.message_row_title, R.id.message_row_timestamp });
-		
-		adapter.setViewBinder(new MessageViewBinder());
-		
-		this.setListAdapter(adapter);		
+		// Set up our list adapter. This loads the messages a page at a time
+		// in the background, and automatically updates as messages are
+		// updated and changed.
+		if( this.adapter != null )
+		{
+			this.adapter.close();
+		}
+		this.adapter = new PagedMessageAdapter(this, this.getSource());
+		this.setListAdapter(this.adapter);
+	}
+
+	@Override
+	protected void onDestroy()
+	{
+		super.onDestroy();
+
+		// Stop loading messages.
+		if( this.adapter != null )
+		{
+			this.adapter.close();
+			this.adapter = null;
+		}
 	}
 	
 	public void updateNotifications()
@@ -182,52 +183,15 @@ public class MessageList extends SherlockListActivity
 	 */
 	protected void onListItemClick( ListView l, View v, int position, long id )
 	{
+		// Nothing to show if it hasn't loaded yet.
+		if( id < 0 )
+		{
+			return;
+		}
+
 		// Launch the message detail.
 		Intent intent = new Intent(getBaseContext(), MessageDetail.class);
 		intent.putExtra("messageId", id);
 		startActivity(intent);
 	}
-	
-	/**
-	 * List item view binding class - used to format dates and make the title bold.
-	 * @author daniel
-	 */
-	private class MessageViewBinder implements SimpleCursorAdapter.ViewBinder
-	{
-		public boolean setViewValue( View view, Cursor cursor, int columnIndex )
-		{
-			// Format the timestamp as local time.
-			if( columnIndex == cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_TIMESTAMP) )
-			{
-				TextView timestamp = (TextView) view;
-				try
-				{
-					timestamp.setText(NotifryMessage.formatUTCAsLocal(NotifryMessage.parseISO8601String(cursor.getString(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_TIMESTAMP)))));
-				}
-				catch( ParseException ex )
-				{
-					timestamp.setText("UNKNOWN");
-				}
-				return true;
-			}
-			// Make the title bold if it's unseen.
-			if( columnIndex == cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_TITLE) )
-			{
-				TextView title = (TextView) view;
-				title.setText(cursor.getString(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_TITLE)));
-				
-				if( cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_SEEN)) == 0 )
-				{
-					title.setTypeface(Typeface.DEFAULT_BOLD);
-				}
-				else
-				{
-					title.setTypeface(Typeface.DEFAULT);
-				}
-				return true;
-			}	
-
-			return false;
-		}
-	}
-}
\ No newline at end of file
+}
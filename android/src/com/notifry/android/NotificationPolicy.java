@@ -0,0 +1,258 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.notifry.android;
+
+import java.util.HashMap;
+
+import com.notifry.android.database.NotifrySource;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.AudioManager;
+import android.preference.PreferenceManager;
+
+/**
+ * The notification settings for a source, worked out from the global
+ * preferences and the source's own overrides. Policies are built once and
+ * kept until the preferences change or a source is saved, so notifying
+ * doesn't have to read the preferences for every message.
+ */
+public class NotificationPolicy
+{
+	private static NotificationPolicy global = null;
+	private static final HashMap<Long, NotificationPolicy> policies = new HashMap<Long, NotificationPolicy>();
+	private static long sourceGeneration = -1;
+
+	// Preferences only holds a weak reference to its listeners.
+	private static SharedPreferences.OnSharedPreferenceChangeListener listener = null;
+
+	private boolean masterEnable;
+	private boolean playRingtone;
+	private String ringtone;
+	private boolean vibrate;
+	private boolean ledFlash;
+	private boolean fastLedFlash;
+	private boolean speakMessage;
+	private SpeakTemplate speakTemplate;
+	private int audioStream;
+	private boolean shakeToStop;
+	private int shakeThreshold;
+	private int shakeWaitTime;
+
+	private NotificationPolicy()
+	{
+		// Built by the static methods.
+	}
+
+	/**
+	 * Get the policy for the global settings.
+	 * @param context
+	 * @return
+	 */
+	public static synchronized NotificationPolicy getGlobal( Context context )
+	{
+		if( global == null )
+		{
+			SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+			if( listener == null )
+			{
+				listener = new SharedPreferences.OnSharedPreferenceChangeListener()
+				{
+					public void onSharedPreferenceChanged( SharedPreferences sharedPreferences, String key )
+					{
+						NotificationPolicy.invalidate();
+					}
+				};
+				settings.registerOnSharedPreferenceChangeListener(listener);
+			}
+			global = NotificationPolicy.fromPreferences(context, settings);
+		}
+		return global;
+	}
+
+	/**
+	 * Get the policy for a source: the global settings, unless the source
+	 * overrides them.
+	 * @param context
+	 * @param source
+	 * @return
+	 */
+	public static synchronized NotificationPolicy forSource( Context context, NotifrySource source )
+	{
+		NotificationPolicy base = NotificationPolicy.getGlobal(context);
+		if( source.getUseGlobalNotification() )
+		{
+			return base;
+		}
+
+		// Any saved source might have changed its overrides.
+		long generation = NotifrySource.FACTORY.getGeneration();
+		if( generation != sourceGeneration )
+		{
+			policies.clear();
+			sourceGeneration = generation;
+		}
+
+		NotificationPolicy policy = policies.get(source.getId());
+		if( policy == null )
+		{
+			policy = base.copy();
+			policy.playRingtone = source.getRingtone();
+			policy.ringtone = source.getCustomRingtone() == null ? "" : source.getCustomRingtone();
+			policy.vibrate = source.getVibrate();
+			policy.ledFlash = source.getLedFlash();
+			policy.speakMessage = source.getSpeakMessage();
+			policies.put(source.getId(), policy);
+		}
+		return policy;
+	}
+
+	/**
+	 * Throw away all the policies, so they're built again from the preferences.
+	 */
+	public static synchronized void invalidate()
+	{
+		global = null;
+		policies.clear();
+	}
+
+	private static NotificationPolicy fromPreferences( Context context, SharedPreferences settings )
+	{
+		NotificationPolicy policy = new NotificationPolicy();
+		policy.masterEnable = settings.getBoolean(context.getString(R.string.masterEnable), true);
+		policy.playRingtone = settings.getBoolean(context.getString(R.string.playRingtone), true);
+		policy.ringtone = settings.getString(context.getString(R.string.choosenNotification), "");
+		policy.vibrate = settings.getBoolean(context.getString(R.string.vibrateNotify), true);
+		policy.ledFlash = settings.getBoolean(context.getString(R.string.ledFlash), true);
+		policy.fastLedFlash = settings.getBoolean(context.getString(R.string.fastLedFlash), false);
+		policy.speakMessage = settings.getBoolean(context.getString(R.string.speakMessage), true);
+		policy.speakTemplate = SpeakTemplate.compile(settings.getString(context.getString(R.string.speakFormat), "%t. %m"));
+		policy.shakeToStop = settings.getBoolean(context.getString(R.string.shakeToStop), false);
+		policy.shakeThreshold = NotificationPolicy.parseInt(settings.getString(context.getString(R.string.shakeThreshold), "1500"), 1500);
+		policy.shakeWaitTime = NotificationPolicy.parseInt(settings.getString(context.getString(R.string.shakeWaitTime), "60"), 60);
+
+		String desiredStream = settings.getString(context.getString(R.string.ttsAudioStream), "NOTIFICATION");
+		policy.audioStream = AudioManager.STREAM_NOTIFICATION;
+		if( desiredStream.equals("ALARM") )
+		{
+			policy.audioStream = AudioManager.STREAM_ALARM;
+		}
+		else if( desiredStream.equals("MUSIC") )
+		{
+			policy.audioStream = AudioManager.STREAM_MUSIC;
+		}
+
+		return policy;
+	}
+
+	private static int parseInt( String value, int defaultValue )
+	{
+		try
+		{
+			return Integer.parseInt(value);
+		}
+		catch( NumberFormatException ex )
+		{
+			return defaultValue;
+		}
+	}
+
+	private NotificationPolicy copy()
+	{
+		NotificationPolicy policy = new NotificationPolicy();
+		policy.masterEnable = this.masterEnable;
+		policy.playRingtone = this.playRingtone;
+		policy.ringtone = this.ringtone;
+		policy.vibrate = this.vibrate;
+		policy.ledFlash = this.ledFlash;
+		policy.fastLedFlash = this.fastLedFlash;
+		policy.speakMessage = this.speakMessage;
+		policy.speakTemplate = this.speakTemplate;
+		policy.audioStream = this.audioStream;
+		policy.shakeToStop = this.shakeToStop;
+		policy.shakeThreshold = this.shakeThreshold;
+		policy.shakeWaitTime = this.shakeWaitTime;
+		return policy;
+	}
+
+	public boolean getMasterEnable()
+	{
+		return masterEnable;
+	}
+
+	public boolean getPlayRingtone()
+	{
+		return playRingtone;
+	}
+
+	/**
+	 * Get the ringtone URI to play, or an empty string for the default tone.
+	 * @return
+	 */
+	public String getRingtone()
+	{
+		return ringtone;
+	}
+
+	public boolean getVibrate()
+	{
+		return vibrate;
+	}
+
+	public boolean getLedFlash()
+	{
+		return ledFlash;
+	}
+
+	public boolean getFastLedFlash()
+	{
+		return fastLedFlash;
+	}
+
+	public boolean getSpeakMessage()
+	{
+		return speakMessage;
+	}
+
+	public SpeakTemplate getSpeakTemplate()
+	{
+		return speakTemplate;
+	}
+
+	public int getAudioStream()
+	{
+		return audioStream;
+	}
+
+	public boolean getShakeToStop()
+	{
+		return shakeToStop;
+	}
+
+	public int getShakeThreshold()
+	{
+		return shakeThreshold;
+	}
+
+	public int getShakeWaitTime()
+	{
+		return shakeWaitTime;
+	}
+}
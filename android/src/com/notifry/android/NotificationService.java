@@ -18,6 +18,8 @@
 
 package com.notifry.android;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import com.notifry.android.database.NotifryAccount;
@@ -30,10 +32,8 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.IBinder;
-import android.preference.PreferenceManager;
 import android.util.Log;
 
 public class NotificationService extends Service
@@ -56,6 +56,11 @@ public class NotificationService extends Service
 	}
 	
 	public Notification setLatestEventInfo( NotifrySource source, NotifryMessage message )
+	{
+		return this.setLatestEventInfo(source, message, NotifryMessage.FACTORY.countUnread(this, source));
+	}
+
+	private Notification setLatestEventInfo( NotifrySource source, NotifryMessage message, int unreadMessagesOfType )
 	{
 		int icon = R.drawable.icon_statusbar;
 		long when = System.currentTimeMillis(); // TODO - make this the timestamp on the message?
@@ -70,13 +75,10 @@ public class NotificationService extends Service
 			notification = new Notification(icon, getString(R.string.app_name), when);		
 		}	
 		
-		int unreadMessagesOfType = 0;
 		Context context = getApplicationContext();
 		String contentTitle = "";
 		String contentText = "";
 
-		unreadMessagesOfType = NotifryMessage.FACTORY.countUnread(this, source);
-
 		if( unreadMessagesOfType == 1 && message != null )
 		{
 			// Only one message of this type. Set the title to be the message's title, and then
@@ -103,56 +105,6 @@ public class NotificationService extends Service
 		return notification;
 	}
 	
-	public boolean globalOrOverrideBoolean( int setting, SharedPreferences preferences, NotifrySource source, boolean defaultValue )
-	{
-		if( source.getUseGlobalNotification() )
-		{
-			// Use the global setting for this notification.
-			return preferences.getBoolean(getString(setting), defaultValue);
-		}
-		else
-		{
-			// Determine the setting, and then return the appropriate setting.
-			if( R.string.playRingtone == setting )
-			{
-				return source.getRingtone();
-			}
-			else if( R.string.vibrateNotify == setting )
-			{
-				return source.getVibrate();
-			}
-			else if( R.string.ledFlash == setting )
-			{
-				return source.getLedFlash();
-			}
-			else if( R.string.speakMessage == setting )
-			{
-				return source.getSpeakMessage();
-			}
-		}
-
-		return defaultValue;
-	}
-	
-	public String globalOrOverrideString( int setting, SharedPreferences preferences, NotifrySource source, String defaultValue )
-	{
-		if( source.getUseGlobalNotification() )
-		{		
-			// Use the global setting for this notification.
-			return preferences.getString(getString(setting), defaultValue);
-		}
-		else
-		{
-			// Determine the setting, and then return the appropriate setting.
-			if( R.string.choosenNotification == setting )
-			{
-				return source.getCustomRingtone();
-			}
-		}
-
-		return defaultValue;
-	}	
-
 	public void onStart( Intent intent, int startId )
 	{
 		super.onStart(intent, startId);
@@ -169,83 +121,38 @@ public class NotificationService extends Service
 		if( operation.equals("notifry") )
 		{
 			// Is the master enable off? Then don't bother doing anything.
-			SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
-			if( settings.getBoolean(getString(R.string.masterEnable), true) == false )
+			if( NotificationPolicy.getGlobal(this).getMasterEnable() == false )
 			{
 				Log.d(TAG, "Master enable is off, so not doing anything.");
 				return;
 			}
 	
-			// We were provided with a message ID. Load it and then handle it.
-			Long messageId = intent.getLongExtra("messageId", 0);
-			
-			NotifryMessage message = NotifryMessage.FACTORY.get(this, messageId); 
-			
-			// If the message is NULL, then we've been passed an invalid message - return.
-			if( message == null )
+			// We were provided with message IDs (or a single message ID). Load them and then handle them.
+			List<NotifryMessage> messages;
+			long[] messageIds = intent.getLongArrayExtra("messageIds");
+			if( messageIds != null )
 			{
-				Log.d(TAG, "Message " + messageId + " not found, so not doing anything.");
-				return;
+				messages = NotifryMessage.FACTORY.listByIds(this, messageIds);
 			}
-			
-			// Make a decision on the message.
-			NotifyDecision decision = NotifyDecision.shouldNotify(this, message);
-			
-			if( decision.getShouldNotify() )
+			else
 			{
-				// Ok, let's start notifying!
-				Notification notification = this.setLatestEventInfo(message.getSource(), message);
-				
-				// Now, other notification methods.
-				if( globalOrOverrideBoolean(R.string.playRingtone, settings, message.getSource(), true) )
-				{
-					String tone = globalOrOverrideString(R.string.choosenNotification, settings, message.getSource(), "");
-					Log.d(TAG, "Notification selected by user: " + tone);
-					if( tone.equals("") )
-					{
-						// Set the default notification tone.
-						notification.defaults |= Notification.DEFAULT_SOUND;
-					}
-					else
-					{
-						// Load the notification and add it.
-						notification.sound = Uri.parse(tone);
-					}
-				}
-				if( globalOrOverrideBoolean(R.string.vibrateNotify, settings, message.getSource(), true) )
-				{
-					notification.defaults |= Notification.DEFAULT_VIBRATE;
-				}
-				if( globalOrOverrideBoolean(R.string.ledFlash, settings, message.getSource(), true) )
+				Long messageId = intent.getLongExtra("messageId", 0);
+				NotifryMessage message = NotifryMessage.FACTORY.get(this, messageId);
+				messages = new ArrayList<NotifryMessage>();
+				if( message != null )
 				{
-					if( settings.getBoolean(getString(R.string.fastLedFlash), false) )
-					{
-						// Special "fast flash" mode for phones with poor notification LEDs.
-						// Ie, my G2 that flashes very slowly so it's hard to notice.
-						notification.ledARGB = 0xff00ff00;
-						notification.ledOnMS = 300;
-						notification.ledOffMS = 1000;
-						notification.flags |= Notification.FLAG_SHOW_LIGHTS;					
-					}
-					else
-					{
-						// Use the default device flash notifications.
-						notification.defaults |= Notification.DEFAULT_LIGHTS;
-					}
-				}
-				
-				// Put the notification in the tray. Use the source's local ID to identify it.
-				this.notificationManager.notify(message.getSource().getNotificationId(), notification);
-	
-				// If we're speaking, dispatch the message to the speaking service.
-				if( globalOrOverrideBoolean(R.string.speakMessage, settings, message.getSource(), true) )
-				{
-					Intent intentData = new Intent(getBaseContext(), SpeakService.class);
-					Log.d(TAG, "Speaking text: " + decision.getOutputMessage());
-					intentData.putExtra("text", decision.getOutputMessage());
-					startService(intentData);
+					messages.add(message);
 				}
 			}
+			
+			// If there are no messages, then we've been passed invalid message IDs - return.
+			if( messages.size() == 0 )
+			{
+				Log.d(TAG, "Messages not found, so not doing anything.");
+				return;
+			}
+			
+			this.notifyMessages(messages);
 		}
 		else if( operation.equals("update") )
 		{
@@ -254,11 +161,12 @@ public class NotificationService extends Service
 
 			if( source != null )
 			{
-				this.updateNotificationFor(source);
+				this.updateNotificationFor(source, NotifryMessage.FACTORY.countUnread(this, source));
 			}
 			else
 			{
-				// Do it for all sources.
+				// Do it for all sources, counting their messages in one go.
+				HashMap<Long, NotifryMessage.Counts> counts = NotifryMessage.FACTORY.countBySource(this, null);
 				List<NotifryAccount> accounts = NotifryAccount.FACTORY.listAll(this);
 				
 				for( NotifryAccount account: accounts )
@@ -266,7 +174,8 @@ public class NotificationService extends Service
 					List<NotifrySource> sources = NotifrySource.FACTORY.listAll(this, account.getAccountName());
 					for( NotifrySource thisSource: sources )
 					{
-						this.updateNotificationFor(thisSource);
+						NotifryMessage.Counts sourceCounts = counts.get(thisSource.getId());
+						this.updateNotificationFor(thisSource, sourceCounts == null ? 0 : sourceCounts.getUnread());
 					}
 				}	
 			}
@@ -275,16 +184,99 @@ public class NotificationService extends Service
 		return;
 	}
 	
-	private void updateNotificationFor( NotifrySource source )
+	/**
+	 * Notify the user about new messages from a single source. The status bar
+	 * notification, sound, vibration and light happen once, for the newest
+	 * message that should be notified, and the spoken messages are combined.
+	 * @param messages
+	 */
+	private void notifyMessages( List<NotifryMessage> messages )
+	{
+		// Make a decision on each message.
+		NotifryMessage message = null;
+		StringBuilder spoken = new StringBuilder();
+		for( NotifryMessage candidate: messages )
+		{
+			NotifyDecision decision = NotifyDecision.shouldNotify(this, candidate);
+			if( decision.getShouldNotify() )
+			{
+				message = candidate;
+				if( spoken.length() > 0 )
+				{
+					spoken.append(". ");
+				}
+				spoken.append(decision.getOutputMessage());
+			}
+		}
+		
+		if( message != null )
+		{
+			// Ok, let's start notifying!
+			Notification notification = this.setLatestEventInfo(message.getSource(), message);
+			
+			// Now, other notification methods.
+			NotificationPolicy policy = NotificationPolicy.forSource(this, message.getSource());
+			if( policy.getPlayRingtone() )
+			{
+				String tone = policy.getRingtone();
+				Log.d(TAG, "Notification selected by user: " + tone);
+				if( tone.equals("") )
+				{
+					// Set the default notification tone.
+					notification.defaults |= Notification.DEFAULT_SOUND;
+				}
+				else
+				{
+					// Load the notification and add it.
+					notification.sound = Uri.parse(tone);
+				}
+			}
+			if( policy.getVibrate() )
+			{
+				notification.defaults |= Notification.DEFAULT_VIBRATE;
+			}
+			if( policy.getLedFlash() )
+			{
+				if( policy.getFastLedFlash() )
+				{
+					// Special "fast flash" mode for phones with poor notification LEDs.
+					// Ie, my G2 that flashes very slowly so it's hard to notice.
+					notification.ledARGB = 0xff00ff00;
+					notification.ledOnMS = 300;
+					notification.ledOffMS = 1000;
+					notification.flags |= Notification.FLAG_SHOW_LIGHTS;					
+				}
+				else
+				{
+					// Use the default device flash notifications.
+					notification.defaults |= Notification.DEFAULT_LIGHTS;
+				}
+			}
+			
+			// Put the notification in the tray. Use the source's local ID to identify it.
+			this.notificationManager.notify(message.getSource().getNotificationId(), notification);
+	
+			// If we're speaking, dispatch the message to the speaking service.
+			if( policy.getSpeakMessage() )
+			{
+				Intent intentData = new Intent(getBaseContext(), SpeakService.class);
+				Log.d(TAG, "Speaking text: " + spoken);
+				intentData.putExtra("text", spoken.toString());
+				startService(intentData);
+			}
+		}
+	}
+	
+	private void updateNotificationFor( NotifrySource source, int unread )
 	{
-		if( NotifryMessage.FACTORY.countUnread(this, source) == 0 )
+		if( unread == 0 )
 		{
 			this.notificationManager.cancel(source.getNotificationId());
 		}
 		else
 		{
 			// Change it to the real number of read messages.
-			Notification notification = setLatestEventInfo(source, null);
+			Notification notification = this.setLatestEventInfo(source, null, unread);
 			this.notificationManager.notify(source.getNotificationId(), notification);
 		}		
 	}
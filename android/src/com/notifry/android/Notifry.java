@@ -18,11 +18,8 @@
 
 package com.notifry.android;
 
-import java.util.Date;
-
 import com.actionbarsherlock.app.SherlockActivity;
 import com.google.android.c2dm.C2DMessaging;
-import com.notifry.android.database.NotifryMessage;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -71,11 +68,13 @@ public class Notifry extends SherlockActivity
 			C2DMessaging.register(this, "notifry@gmail.com");
 		}
 		
-		// Clean out old messages.
-		// TODO: Do this somewhere else too.
-		Date olderThan = new Date();
-		olderThan.setTime(olderThan.getTime() - 86400 * 1000);
-		NotifryMessage.FACTORY.deleteOlderThan(this, olderThan);
+		// Send anything left in the outbox - its alarm doesn't survive a reboot.
+		Intent outboxIntent = new Intent(this, UpdaterService.class);
+		outboxIntent.putExtra("type", "outbox");
+		startService(outboxIntent);
+		
+		// Clean out old messages in the background, and keep doing so.
+		RetentionService.schedule(this);
 	}
 
 	public void onResume()
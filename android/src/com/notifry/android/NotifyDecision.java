@@ -21,8 +21,6 @@ package com.notifry.android;
 import com.notifry.android.database.NotifryMessage;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 
 public class NotifyDecision
 {
@@ -75,32 +73,9 @@ public class NotifyDecision
 		// Set the message that should be spoken.
 		decision.setMessage(message);
 
-		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
-		String format = settings.getString("speakFormat", "%t. %m");
-		
-		StringBuffer buffer = new StringBuffer(format);
-		formatString(buffer, "%t", message.getTitle());
-		formatString(buffer, "%m", message.getMessage());
-		formatString(buffer, "%s", message.getSource().getTitle());
-		formatString(buffer, "%a", message.getSource().getAccountName());
-		formatString(buffer, "%%", "%");
-		decision.setOutputMessage(buffer.toString());
+		NotificationPolicy policy = NotificationPolicy.forSource(context, message.getSource());
+		decision.setOutputMessage(policy.getSpeakTemplate().render(message));
 
 		return decision;
 	}
-	
-	/**
-	 * Replace a keyword with a value every time it appears in the buffer.
-	 * @param buffer
-	 * @param keyword
-	 * @param value
-	 */
-	private static void formatString( StringBuffer buffer, String keyword, String value )
-	{
-		int position = -1;
-		while( (position = buffer.indexOf(keyword)) != -1 )
-		{
-			buffer.replace(position, position + keyword.length(), value);
-		}
-	}
 }
@@ -0,0 +1,351 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.notifry.android;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.notifry.android.database.NotifryDatabaseAdapter;
+import com.notifry.android.database.NotifryMessage;
+import com.notifry.android.database.NotifrySource;
+import com.notifry.android.database.TimestampCodec;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.graphics.Typeface;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * List adapter for the message list, that loads the messages a page at a
+ * time on a background thread as they're scrolled to.
+ * 
+ * Pages are fetched by keyset - each page starts after the timestamp and ID
+ * of the last message of the page before - so only the keys of the pages
+ * are kept for the whole list, and only the most recently used pages are
+ * kept in memory. When the messages change, the pages are loaded again.
+ */
+public class PagedMessageAdapter extends BaseAdapter
+{
+	/**
+	 * The number of messages in a page.
+	 */
+	private static final int PAGE_SIZE = 50;
+
+	/**
+	 * The most pages to keep in memory.
+	 */
+	private static final int MAX_CACHED_PAGES = 8;
+
+	/**
+	 * Start loading the next page when the list is scrolled this close to it.
+	 */
+	private static final int PREFETCH_DISTANCE = 20;
+
+	private static class Row
+	{
+		long id;
+		String title;
+		long timestampMillis;
+		boolean seen;
+	}
+
+	private final Context context;
+	private final NotifrySource source;
+	private final LayoutInflater inflater;
+	private final HandlerThread loaderThread;
+	private final Handler loader;
+	private final Handler handler = new Handler();
+
+	// Only touched on the UI thread.
+	private final LinkedHashMap<Integer, Row[]> pages = new LinkedHashMap<Integer, Row[]>(MAX_CACHED_PAGES, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<Integer, Row[]> eldest )
+		{
+			return this.size() > MAX_CACHED_PAGES;
+		}
+	};
+	private final ArrayList<long[]> lastKeys = new ArrayList<long[]>();
+	private final HashSet<Integer> loading = new HashSet<Integer>();
+	private int knownRows = 0;
+	private boolean complete = false;
+	private int wantedPage = 0;
+	private int generation = 0;
+
+	private final ContentObserver observer;
+
+	public PagedMessageAdapter( Context context, NotifrySource source )
+	{
+		this.context = context;
+		this.source = source;
+		this.inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+
+		this.loaderThread = new HandlerThread("MessageListLoader");
+		this.loaderThread.start();
+		this.loader = new Handler(this.loaderThread.getLooper());
+
+		// Reload when the messages change.
+		this.observer = new ContentObserver(this.handler)
+		{
+			@Override
+			public void onChange( boolean selfChange )
+			{
+				PagedMessageAdapter.this.reload();
+			}
+		};
+		context.getContentResolver().registerContentObserver(NotifryDatabaseAdapter.CONTENT_URI_MESSAGES, true, this.observer);
+
+		this.ensurePage(0);
+	}
+
+	/**
+	 * Stop loading and listening for changes. Call this when the list goes away.
+	 */
+	public void close()
+	{
+		this.context.getContentResolver().unregisterContentObserver(this.observer);
+		this.loaderThread.quit();
+		this.generation++;
+	}
+
+	/**
+	 * Throw away the loaded pages and load them again. The count is kept
+	 * until the pages are loaded, so the list doesn't jump.
+	 */
+	private void reload()
+	{
+		this.generation++;
+		this.pages.clear();
+		this.lastKeys.clear();
+		this.loading.clear();
+		this.complete = false;
+		this.ensurePage(this.wantedPage);
+	}
+
+	/**
+	 * Load a page if it's not already loaded. Pages can only be found from
+	 * the page before, so any pages before it whose keys aren't known are
+	 * loaded first.
+	 * @param index
+	 */
+	private void ensurePage( int index )
+	{
+		if( this.pages.containsKey(index) )
+		{
+			return;
+		}
+		if( this.complete && index >= this.lastKeys.size() )
+		{
+			// There's nothing there.
+			return;
+		}
+
+		this.wantedPage = Math.max(this.wantedPage, index);
+		int next = Math.min(index, this.lastKeys.size());
+		if( this.loading.contains(next) )
+		{
+			return;
+		}
+		this.loading.add(next);
+
+		final int page = next;
+		final int pageGeneration = this.generation;
+		final Long afterMillis = page == 0 ? null : Long.valueOf(this.lastKeys.get(page - 1)[0]);
+		final long afterId = page == 0 ? 0 : this.lastKeys.get(page - 1)[1];
+
+		this.loader.post(new Runnable()
+		{
+			public void run()
+			{
+				final Row[] rows = PagedMessageAdapter.this.query(afterMillis, afterId);
+				PagedMessageAdapter.this.handler.post(new Runnable()
+				{
+					public void run()
+					{
+						PagedMessageAdapter.this.pageLoaded(pageGeneration, page, rows);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Read a page of messages. Runs on the loader thread.
+	 */
+	private Row[] query( Long afterMillis, long afterId )
+	{
+		Cursor cursor = NotifryMessage.FACTORY.cursorPage(this.context, this.source, afterMillis, afterId, PAGE_SIZE);
+		try
+		{
+			int idColumn = cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_ID);
+			int titleColumn = cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_TITLE);
+			int timestampColumn = cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_TIMESTAMP_MILLIS);
+			int seenColumn = cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_SEEN);
+
+			Row[] rows = new Row[cursor.getCount()];
+			for( int i = 0; cursor.moveToNext(); i++ )
+			{
+				Row row = new Row();
+				row.id = cursor.getLong(idColumn);
+				row.title = cursor.getString(titleColumn);
+				row.timestampMillis = cursor.getLong(timestampColumn);
+				row.seen = cursor.getLong(seenColumn) != 0;
+				rows[i] = row;
+			}
+			return rows;
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	private void pageLoaded( int pageGeneration, int page, Row[] rows )
+	{
+		if( pageGeneration != this.generation )
+		{
+			// The messages changed while it was loading.
+			return;
+		}
+		this.loading.remove(page);
+
+		this.pages.put(page, rows);
+		if( rows.length > 0 )
+		{
+			long[] key = new long[] { rows[rows.length - 1].timestampMillis, rows[rows.length - 1].id };
+			if( page < this.lastKeys.size() )
+			{
+				this.lastKeys.set(page, key);
+			}
+			else
+			{
+				this.lastKeys.add(key);
+			}
+		}
+
+		if( rows.length < PAGE_SIZE )
+		{
+			// That's the end of the list.
+			this.complete = true;
+			this.knownRows = page * PAGE_SIZE + rows.length;
+			this.wantedPage = Math.min(this.wantedPage, page);
+		}
+		else
+		{
+			this.knownRows = Math.max(this.knownRows, (page + 1) * PAGE_SIZE);
+		}
+		this.notifyDataSetChanged();
+
+		// Carry on towards the page that's wanted.
+		if( this.wantedPage > page )
+		{
+			this.ensurePage(this.wantedPage);
+		}
+	}
+
+	private Row getRow( int position )
+	{
+		Row[] page = this.pages.get(position / PAGE_SIZE);
+		if( page == null || position % PAGE_SIZE >= page.length )
+		{
+			return null;
+		}
+		return page[position % PAGE_SIZE];
+	}
+
+	public int getCount()
+	{
+		return this.knownRows;
+	}
+
+	public Object getItem( int position )
+	{
+		return this.getRow(position);
+	}
+
+	public long getItemId( int position )
+	{
+		Row row = this.getRow(position);
+		return row == null ? -1 : row.id;
+	}
+
+	@Override
+	public boolean hasStableIds()
+	{
+		return true;
+	}
+
+	public View getView( int position, View convertView, ViewGroup parent )
+	{
+		// Inflate a view if required.
+		if( convertView == null )
+		{
+			convertView = this.inflater.inflate(R.layout.message_list_row, null);
+		}
+
+		// Load this page, and the next one if we're getting close to it.
+		int page = position / PAGE_SIZE;
+		this.wantedPage = page;
+		this.ensurePage(page);
+		if( position + PREFETCH_DISTANCE >= (page + 1) * PAGE_SIZE )
+		{
+			this.ensurePage(page + 1);
+		}
+
+		TextView title = (TextView) convertView.findViewById(R.id.message_row_title);
+		TextView timestamp = (TextView) convertView.findViewById(R.id.message_row_timestamp);
+
+		Row row = this.getRow(position);
+		if( row == null )
+		{
+			// Not loaded yet.
+			title.setText("");
+			timestamp.setText("");
+			return convertView;
+		}
+
+		// Make the title bold if it's unseen.
+		title.setText(row.title);
+		title.setTypeface(row.seen ? Typeface.DEFAULT : Typeface.DEFAULT_BOLD);
+
+		// The time is parsed into millis when stored - zero if it couldn't be.
+		if( row.timestampMillis != 0 )
+		{
+			timestamp.setText(TimestampCodec.formatLocal(row.timestampMillis));
+		}
+		else
+		{
+			timestamp.setText("UNKNOWN");
+		}
+
+		return convertView;
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.notifry.android;
+
+import com.notifry.android.database.MessageRetention;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+/**
+ * Runs the message retention pass in the background, on a repeating alarm.
+ */
+public class RetentionService extends IntentService
+{
+	public RetentionService()
+	{
+		super("RetentionService");
+	}
+
+	/**
+	 * Run a retention pass now, and make sure the repeating alarm is set.
+	 * The alarm doesn't survive a reboot, so this is called at startup.
+	 * @param context
+	 */
+	public static void schedule( Context context )
+	{
+		Intent intentData = new Intent(context, RetentionService.class);
+		PendingIntent pendingIntent = PendingIntent.getService(context, 0, intentData, PendingIntent.FLAG_UPDATE_CURRENT);
+
+		AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR, AlarmManager.INTERVAL_HOUR, pendingIntent);
+
+		context.startService(intentData);
+	}
+
+	@Override
+	protected void onHandleIntent( Intent intent )
+	{
+		MessageRetention.run(this);
+	}
+}
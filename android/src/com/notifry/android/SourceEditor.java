@@ -28,6 +28,7 @@ import java.util.Set;
 import org.json.JSONException;
 
 import com.actionbarsherlock.view.MenuItem;
+import com.notifry.android.database.NotifryOutboxEntry;
 import com.notifry.android.database.NotifrySource;
 import com.notifry.android.remote.BackendRequest;
 import com.notifry.android.remote.BackendResponse;
@@ -94,9 +95,12 @@ public class SourceEditor extends PreferenceActivity
 			values.put("source_ledflash", thisActivity.source.getLedFlash());
 			values.put("source_speakmessage", thisActivity.source.getSpeakMessage());
 			values.put("source_global", thisActivity.source.getUseGlobalNotification());
+			values.put("source_retention_keep_unread", thisActivity.source.getRetentionKeepUnread());
 			
 			values.put("source_customringtone", thisActivity.source.getCustomRingtone());
 			values.put("source_title", thisActivity.source.getTitle());
+			values.put("source_retention_max_age", thisActivity.source.getRetentionMaxAge().toString());
+			values.put("source_retention_max_count", thisActivity.source.getRetentionMaxCount().toString());
 			return values;
 		}
 
@@ -137,6 +141,10 @@ public class SourceEditor extends PreferenceActivity
 			{
 				return thisActivity.source.getUseGlobalNotification();
 			}
+			else if( key.equals("source_retention_keep_unread") )
+			{
+				return thisActivity.source.getRetentionKeepUnread();
+			}
 
 			return false;
 		}
@@ -171,6 +179,14 @@ public class SourceEditor extends PreferenceActivity
 			{
 				return thisActivity.source.getCustomRingtone();
 			}
+			else if( key.equals("source_retention_max_age") )
+			{
+				return thisActivity.source.getRetentionMaxAge().toString();
+			}
+			else if( key.equals("source_retention_max_count") )
+			{
+				return thisActivity.source.getRetentionMaxCount().toString();
+			}
 
 			return null;
 		}
@@ -239,6 +255,10 @@ public class SourceEditor extends PreferenceActivity
 				{
 					thisActivity.source.setUseGlobalNotification(value);
 				}
+				else if( key.equals("source_retention_keep_unread") )
+				{
+					thisActivity.source.setRetentionKeepUnread(value);
+				}
 
 				return this;
 			}
@@ -273,11 +293,36 @@ public class SourceEditor extends PreferenceActivity
 				else if( key.equals("source_customringtone") )
 				{
 					thisActivity.source.setCustomRingtone(value);
-				}				
+				}
+				else if( key.equals("source_retention_max_age") )
+				{
+					thisActivity.source.setRetentionMaxAge(parseRetention(value));
+				}
+				else if( key.equals("source_retention_max_count") )
+				{
+					thisActivity.source.setRetentionMaxCount(parseRetention(value));
+				}
 
 				return this;
 			}
 
+			/**
+			 * Parse a retention setting, treating anything invalid as 0 (the default).
+			 * @param value
+			 * @return
+			 */
+			private Integer parseRetention( String value )
+			{
+				try
+				{
+					return Math.max(0, Integer.parseInt(value.trim()));
+				}
+				catch( NumberFormatException e )
+				{
+					return 0;
+				}
+			}
+
 			public android.content.SharedPreferences.Editor remove( String key )
 			{
 				// Nothing to do here - this doesn't make sense.
@@ -591,7 +636,18 @@ public class SourceEditor extends PreferenceActivity
 			BackendResponse response = (BackendResponse) msg.obj;
 
 			// Was it successful?
-			if( response.isError() )
+			if( response.isError() && response.isRetryable() && "save".equals(response.getRequest().getMeta("operation")) )
+			{
+				// Couldn't get through. Keep the local settings, and send the
+				// change to the server in the background.
+				BackendRequest request = response.getRequest();
+				NotifrySource source = (NotifrySource) request.getMeta("source");
+				source.save(thisActivity);
+				UpdaterService.queue(thisActivity, NotifryOutboxEntry.OPERATION_SOURCE_UPDATE, source.getServerId().toString(), source.getAccountName(), request);
+
+				Toast.makeText(thisActivity, getString(R.string.queued_for_retry), Toast.LENGTH_LONG).show();
+			}
+			else if( response.isError() )
 			{
 				// No, not successful.
 				Toast.makeText(thisActivity, response.getError() + " - Please try again.", Toast.LENGTH_LONG).show();
@@ -19,15 +19,17 @@
 package com.notifry.android;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 
 import com.actionbarsherlock.app.SherlockListActivity;
 import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuItem;
 import com.notifry.android.database.NotifryAccount;
+import com.notifry.android.database.NotifryMessage;
 import com.notifry.android.database.NotifrySource;
+import com.notifry.android.database.NotifrySourceStream;
 import com.notifry.android.remote.BackendRequest;
 import com.notifry.android.remote.BackendResponse;
 
@@ -36,6 +38,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Configuration;
+import android.graphics.Typeface;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -101,6 +104,18 @@ public class SourceList extends SherlockListActivity implements View.OnClickList
 		// Indicate what we're doing.
 		request.addMeta("operation", "list");
 
+		// If we've synced before, only ask for what has changed since - and
+		// nothing at all if the list hasn't changed.
+		String since = this.getAccount().getSourceSyncTimestamp();
+		if( since != null )
+		{
+			request.add("since", since);
+		}
+		request.setIfNoneMatch(this.getAccount().getSourceListETag());
+
+		// Save the sources as they arrive, rather than once the whole list has been parsed.
+		request.setStreamHandler(new NotifrySourceStream(new NotifrySource.Sync(this, this.getAccount().getAccountName(), since != null)));
+
 		// For debugging, dump the request data.
 		request.dumpRequest();
 		
@@ -136,10 +151,11 @@ public class SourceList extends SherlockListActivity implements View.OnClickList
 	 */
 	public void refreshView()
 	{
-		// Refresh our list of sources.
+		// Refresh our list of sources, and count their messages in one go.
 		ArrayList<NotifrySource> sources = NotifrySource.FACTORY.listAll(this, this.getAccount().getAccountName()); 
+		HashMap<Long, NotifryMessage.Counts> counts = NotifryMessage.FACTORY.countBySource(this, this.getAccount().getAccountName());
 
-		this.setListAdapter(new SourceArrayAdapter(this, this, R.layout.source_list_row, sources));
+		this.setListAdapter(new SourceArrayAdapter(this, this, R.layout.source_list_row, sources, counts));
 	}
 
 	@Override
@@ -325,14 +341,18 @@ public class SourceList extends SherlockListActivity implements View.OnClickList
 					}
 					else if( operation.equals("list") )
 					{
-						// We just got a list from the server. Sync it up!
-						JSONArray serverList = response.getJSON().getJSONArray("sources");
-						NotifrySource.FACTORY.syncFromJSONArray(thisActivity, serverList, thisActivity.getAccount().getAccountName());
-						
-						// Mark the account as synced.
-						NotifryAccount account = NotifryAccount.FACTORY.getByAccountName(thisActivity, thisActivity.getAccount().getAccountName()); 
-						account.setRequiresSync(false);
-						account.save(thisActivity);
+						// We just got a list from the server. It was synced as it was read,
+						// and the account marked as synced, so there's nothing left to save.
+						// Unless nothing had changed, in which case we're already in sync.
+						if( response.isNotModified() )
+						{
+							NotifryAccount account = NotifryAccount.FACTORY.getByAccountName(thisActivity, thisActivity.getAccount().getAccountName());
+							if( account.getRequiresSync() )
+							{
+								account.setRequiresSync(false);
+								account.save(thisActivity);
+							}
+						}
 
 						// Force the object to be refreshed next time.
 						thisActivity.account = null;
@@ -363,67 +383,91 @@ public class SourceList extends SherlockListActivity implements View.OnClickList
 	{
 		final private SourceList parentActivity;
 		private ArrayList<NotifrySource> sources;
+		private HashMap<Long, NotifryMessage.Counts> counts;
 
-		public SourceArrayAdapter( SourceList parentActivity, Context context, int textViewResourceId, ArrayList<NotifrySource> objects )
+		public SourceArrayAdapter( SourceList parentActivity, Context context, int textViewResourceId, ArrayList<NotifrySource> objects, HashMap<Long, NotifryMessage.Counts> counts )
 		{
 			super(context, textViewResourceId, objects);
 			this.parentActivity = parentActivity;
 			this.sources = objects;
+			this.counts = counts;
 		}
 
 		public View getView( int position, View convertView, ViewGroup parent )
 		{
-			// Inflate a view if required.
+			// Inflate a view if required, and remember its parts for when it's reused.
+			ViewHolder holder;
 			if( convertView == null )
 			{
 				LayoutInflater inflater = (LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE);
 				convertView = inflater.inflate(R.layout.source_list_row, null);
+
+				holder = new ViewHolder();
+				holder.title = (TextView) convertView.findViewById(R.id.source_row_source_name);
+				holder.serverEnabled = (TextView) convertView.findViewById(R.id.source_row_server_enabled);
+				holder.enabled = (CheckBox) convertView.findViewById(R.id.source_row_local_enabled);
+				holder.counts = (TextView) convertView.findViewById(R.id.source_row_counts);
+				convertView.setTag(holder);
+
+				holder.title.setClickable(true);
+				holder.title.setOnClickListener(parentActivity);
+				holder.serverEnabled.setClickable(true);
+				holder.serverEnabled.setOnClickListener(parentActivity);
+			}
+			else
+			{
+				holder = (ViewHolder) convertView.getTag();
 			}
 
-			// Find the account.
+			// Find the source.
 			final NotifrySource source = this.sources.get(position);
 
 			// And set the values on our row.
 			if( source != null )
 			{
-				TextView title = (TextView) convertView.findViewById(R.id.source_row_source_name);
-				TextView serverEnabled = (TextView) convertView.findViewById(R.id.source_row_server_enabled);
-				CheckBox enabled = (CheckBox) convertView.findViewById(R.id.source_row_local_enabled);
+				holder.title.setText(source.getTitle());
+				holder.title.setTag(source.getId());
 
-				
-				if( title != null )
+				holder.serverEnabled.setTag(source.getId());
+				if( source.getServerEnabled() == false )
 				{
-					title.setText(source.getTitle());
-					title.setClickable(true);
-					title.setTag(source.getId());
-
-					title.setOnClickListener(parentActivity);
+					holder.serverEnabled.setText(getString(R.string.source_disabled_on_server));
+					holder.serverEnabled.setVisibility(View.VISIBLE);
 				}
-				if( serverEnabled != null )
+				else
 				{
-					serverEnabled.setClickable(true);
-					serverEnabled.setTag(source.getId());
-					if( source.getServerEnabled() == false )
-					{
-						serverEnabled.setText(getString(R.string.source_disabled_on_server));
-						serverEnabled.setVisibility(View.VISIBLE);
-					}
-					else
-					{
-						serverEnabled.setVisibility(View.GONE);
-					}
-					serverEnabled.setOnClickListener(parentActivity);
+					holder.serverEnabled.setVisibility(View.GONE);
 				}
-				if( enabled != null )
-				{
-					enabled.setChecked(source.getLocalEnabled());
-					enabled.setTag(source.getId());
 
-					enabled.setOnCheckedChangeListener(parentActivity);
+				// Don't tell the old source when the check box is changed for the new one.
+				holder.enabled.setOnCheckedChangeListener(null);
+				holder.enabled.setChecked(source.getLocalEnabled());
+				holder.enabled.setTag(source.getId());
+				holder.enabled.setOnCheckedChangeListener(parentActivity);
+
+				// Unread and total messages.
+				NotifryMessage.Counts sourceCounts = this.counts.get(source.getId());
+				if( sourceCounts == null )
+				{
+					sourceCounts = NotifryMessage.Counts.NONE;
 				}
+				holder.counts.setText(String.format(getString(R.string.source_message_counts), sourceCounts.getUnread(), sourceCounts.getTotal()));
+				holder.counts.setTypeface(sourceCounts.getUnread() > 0 ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT);
 			}
 
 			return convertView;
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * The views in a source row, so they don't have to be found every time
+	 * the row is reused.
+	 */
+	private static class ViewHolder
+	{
+		TextView title;
+		TextView serverEnabled;
+		CheckBox enabled;
+		TextView counts;
+	}
+}
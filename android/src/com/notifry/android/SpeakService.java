@@ -25,16 +25,13 @@ import android.speech.tts.TextToSpeech;
 
 import android.app.Service;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.media.AudioManager;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
-import android.preference.PreferenceManager;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
@@ -138,19 +135,7 @@ public class SpeakService extends Service implements SensorEventListener, TextTo
 
 	private int getAudioStream()
 	{
-		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
-		String desiredStream = settings.getString(getString(R.string.ttsAudioStream), "NOTIFICATION");
-		int stream = AudioManager.STREAM_NOTIFICATION;
-		if( desiredStream.equals("ALARM") )
-		{
-			stream = AudioManager.STREAM_ALARM;
-		}
-		else if( desiredStream.equals("MUSIC") )
-		{
-			stream = AudioManager.STREAM_MUSIC;
-		}
-		
-		return stream;
+		return NotificationPolicy.getGlobal(this).getAudioStream();
 	}
 
 	@Override
@@ -171,34 +156,19 @@ public class SpeakService extends Service implements SensorEventListener, TextTo
 			return;
 		}
 
-		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+		NotificationPolicy policy = NotificationPolicy.getGlobal(this);
 
 		boolean stopInstead = intent.getExtras().getBoolean("stopNow");
 		int delaySend = intent.getExtras().getInt("delay");
 
-		if( settings.getBoolean(getString(R.string.shakeToStop), false) )
+		if( policy.getShakeToStop() )
 		{
 			// Shake to stop is on - kick off the listener for N seconds,
 			// if not already running.
 			if( !this.shakeSensingOn )
 			{
-				try
-				{
-					this.shakeThreshold = Integer.parseInt(settings.getString(getString(R.string.shakeThreshold), "1500"));
-				}
-				catch( NumberFormatException ex )
-				{
-					this.shakeThreshold = 1500;
-				}
-				Integer shakeWaitTime = 60;
-				try
-				{
-					shakeWaitTime = Integer.parseInt(settings.getString(getString(R.string.shakeWaitTime), "60"));
-				}
-				catch( NumberFormatException ex )
-				{
-					// Invalid - ignore.
-				}
+				this.shakeThreshold = policy.getShakeThreshold();
+				Integer shakeWaitTime = policy.getShakeWaitTime();
 				this.sensorMgr = (SensorManager) getSystemService(SENSOR_SERVICE);
 				boolean accelSupported = this.sensorMgr.registerListener(
 						this,
@@ -0,0 +1,152 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.notifry.android;
+
+import java.util.ArrayList;
+
+import com.notifry.android.database.NotifryMessage;
+
+/**
+ * A speak format, parsed once into literal text and placeholders so that
+ * each message can be rendered in a single pass. Placeholders are only
+ * expanded in the format itself, never in the values put in their place.
+ * 
+ * %t is the title, %m the message, %s the source, %a the account,
+ * %d the time of the message, %u the URL and %% a percent sign. Anything
+ * else after a percent sign is left as it is.
+ */
+public class SpeakTemplate
+{
+	private static final char TITLE = 't';
+	private static final char MESSAGE = 'm';
+	private static final char SOURCE = 's';
+	private static final char ACCOUNT = 'a';
+	private static final char TIMESTAMP = 'd';
+	private static final char URL = 'u';
+
+	private static SpeakTemplate cached = null;
+
+	private final String format;
+	// Each token is either a String to copy as is, or a Character placeholder.
+	private final ArrayList<Object> tokens = new ArrayList<Object>();
+	private final StringBuilder output = new StringBuilder();
+
+	private SpeakTemplate( String format )
+	{
+		this.format = format;
+
+		StringBuilder literal = new StringBuilder();
+		int length = format.length();
+		for( int i = 0; i < length; i++ )
+		{
+			char c = format.charAt(i);
+			if( c == '%' && i + 1 < length )
+			{
+				char code = format.charAt(i + 1);
+				if( code == '%' )
+				{
+					literal.append('%');
+					i++;
+					continue;
+				}
+				if( code == TITLE || code == MESSAGE || code == SOURCE || code == ACCOUNT || code == TIMESTAMP || code == URL )
+				{
+					if( literal.length() > 0 )
+					{
+						this.tokens.add(literal.toString());
+						literal.setLength(0);
+					}
+					this.tokens.add(Character.valueOf(code));
+					i++;
+					continue;
+				}
+			}
+			literal.append(c);
+		}
+		if( literal.length() > 0 )
+		{
+			this.tokens.add(literal.toString());
+		}
+	}
+
+	/**
+	 * Get the compiled template for a format. The last one compiled is kept,
+	 * so it's only parsed again when the format preference changes.
+	 * @param format
+	 * @return
+	 */
+	public static synchronized SpeakTemplate compile( String format )
+	{
+		if( cached == null || !cached.format.equals(format) )
+		{
+			cached = new SpeakTemplate(format);
+		}
+		return cached;
+	}
+
+	/**
+	 * Render the text to speak for a message.
+	 * @param message
+	 * @return
+	 */
+	public synchronized String render( NotifryMessage message )
+	{
+		this.output.setLength(0);
+		for( Object token: this.tokens )
+		{
+			if( token instanceof String )
+			{
+				this.output.append((String) token);
+				continue;
+			}
+
+			String value = null;
+			switch( ((Character) token).charValue() )
+			{
+				case TITLE:
+					value = message.getTitle();
+					break;
+				case MESSAGE:
+					value = message.getMessage();
+					break;
+				case SOURCE:
+					value = message.getSource().getTitle();
+					break;
+				case ACCOUNT:
+					value = message.getSource().getAccountName();
+					break;
+				case TIMESTAMP:
+					if( message.getTimestamp() != null )
+					{
+						value = message.getDisplayTimestamp();
+					}
+					break;
+				case URL:
+					value = message.getUrl();
+					break;
+			}
+			if( value != null )
+			{
+				this.output.append(value);
+			}
+		}
+		return this.output.toString();
+	}
+}
@@ -19,15 +19,19 @@
 package com.notifry.android;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
+import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import com.notifry.android.database.NotifryAccount;
+import com.notifry.android.database.NotifryOutboxEntry;
 import com.notifry.android.database.NotifrySource;
 import com.notifry.android.remote.BackendRequest;
 import com.notifry.android.remote.BackendResponse;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
@@ -73,7 +77,8 @@ public class UpdaterService extends Service
 			this.wakelock.acquire(60000); // Max 60 seconds.
 		}*/
 		
-		// We need to make some kind of backend request.
+		// We need to make some kind of backend request. These go via the outbox,
+		// so they are retried if they fail.
 		String type = intent.getExtras().getString("type");
 		
 		if( type.equals("registration") )
@@ -84,18 +89,17 @@ public class UpdaterService extends Service
 			
 			String newRegistration = intent.getExtras().getString("registration");
 
-			// TODO: Notify the user if this fails.
 			for( NotifryAccount account: accounts )
 			{
 				if( account.getEnabled() )
 				{
-					HashMap<String, Object> metadata = new HashMap<String, Object>();
-					metadata.put("account", account);
-					metadata.put("operation", "register");
-					metadata.put("registration", newRegistration);
-					account.registerWithBackend(this, newRegistration, true, null, handler, metadata);
+					BackendRequest request = account.buildRegistrationRequest(this, newRegistration, true);
+					String key = NotifryOutboxEntry.keyFor(NotifryOutboxEntry.OPERATION_REGISTER, account.getAccountName());
+					NotifryOutboxEntry.FACTORY.enqueue(this, NotifryOutboxEntry.OPERATION_REGISTER, key, account.getAccountName(), request);
 				}
 			}
+
+			this.processOutbox();
 		}
 		else if( type.equals("sourcechange") )
 		{
@@ -103,25 +107,200 @@ public class UpdaterService extends Service
 			Long serverSourceId = intent.getLongExtra("sourceId", 0);
 			Long serverDeviceId = intent.getLongExtra("deviceId", 0);
 			
-			BackendRequest request = new BackendRequest("/sources/get");
-			request.add("id", serverSourceId.toString());
-			request.addMeta("operation", "updatedSource");
-			request.addMeta("context", this);
-			request.addMeta("source_id", serverSourceId);
-			request.addMeta("account_id", serverDeviceId);
-		
-			// Where to come back when we're done.
-			request.setHandler(handler);
-			
 			NotifryAccount account = NotifryAccount.FACTORY.getByServerId(this, serverDeviceId); 
 
-			// Start a thread to make the request.
 			// But if there was no account to match that device, don't bother.
+			// Changes arriving close together are fetched in one request.
 			if( account != null )
 			{
-				request.startInThread(this, null, account.getAccountName());
-			}			
+				NotifryOutboxEntry.FACTORY.enqueueSourceFetch(this, account.getAccountName(), serverSourceId);
+			}
+
+			this.processOutbox();
+		}
+		else if( type.equals("outbox") )
+		{
+			// Something is due, or the network came back.
+			this.processOutbox();
+		}
+	}
+
+	/**
+	 * Queue a backend operation to be sent in the background, and retried
+	 * until it succeeds.
+	 * @param context
+	 * @param operation One of the NotifryOutboxEntry.OPERATION_ constants.
+	 * @param subject The account name or server source ID the operation is for.
+	 * @param accountName
+	 * @param request
+	 */
+	public static void queue( Context context, String operation, String subject, String accountName, BackendRequest request )
+	{
+		NotifryOutboxEntry.FACTORY.enqueue(context, operation, NotifryOutboxEntry.keyFor(operation, subject), accountName, request);
+
+		Intent intentData = new Intent(context, UpdaterService.class);
+		intentData.putExtra("type", "outbox");
+		context.startService(intentData);
+	}
+
+	/**
+	 * Send anything in the outbox that is due, and schedule the next run.
+	 */
+	private void processOutbox()
+	{
+		// If there's no network, there's no point trying - wait for it to come back.
+		if( !ConnectivityReceiver.isConnected(this) )
+		{
+			Log.d(TAG, "No network, so waiting for it before sending the outbox.");
+			ConnectivityReceiver.setEnabled(this, true);
+			return;
+		}
+		ConnectivityReceiver.setEnabled(this, false);
+
+		for( NotifryOutboxEntry entry: NotifryOutboxEntry.FACTORY.listDue(this, System.currentTimeMillis()) )
+		{
+			BackendRequest request;
+			try
+			{
+				request = entry.toRequest();
+			}
+			catch( JSONException e )
+			{
+				Log.e(TAG, "Dropping unreadable outbox entry " + entry.getDedupeKey() + ": " + e.getMessage());
+				entry.delete(this);
+				continue;
+			}
+
+			request.addMeta("operation", entry.getOperation());
+			request.addMeta("outbox_id", entry.getId());
+			request.addMeta("outbox_revision", entry.getRevision());
+			request.addMeta("account_name", entry.getAccountName());
+			request.setHandler(handler);
+
+			entry.sent(this);
+			request.startInThread(this, null, entry.getAccountName());
+		}
+
+		this.scheduleOutbox();
+	}
+
+	/**
+	 * Set an alarm for when the next outbox entry is due, or cancel it if
+	 * the outbox is empty.
+	 */
+	private void scheduleOutbox()
+	{
+		AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+		Intent intentData = new Intent(this, UpdaterService.class);
+		intentData.putExtra("type", "outbox");
+		PendingIntent pendingIntent = PendingIntent.getService(this, 0, intentData, PendingIntent.FLAG_UPDATE_CURRENT);
+
+		long nextAttempt = NotifryOutboxEntry.FACTORY.getNextAttemptTime(this);
+		if( nextAttempt == 0 )
+		{
+			alarmManager.cancel(pendingIntent);
+		}
+		else
+		{
+			alarmManager.set(AlarmManager.RTC, nextAttempt, pendingIntent);
+		}
+	}
+
+	/**
+	 * Store the result of a successful backend operation.
+	 * @param operation
+	 * @param account The account the operation was for.
+	 * @param request
+	 * @param response
+	 * @throws JSONException
+	 */
+	private void applyResult( String operation, NotifryAccount account, BackendRequest request, BackendResponse response ) throws JSONException
+	{
+		// Determine our operation.
+		if( operation.equals(NotifryOutboxEntry.OPERATION_SOURCE_GET) && response.getJSON().has("sources") )
+		{
+			// We fetched a batch of sources. Any the server no longer has were
+			// deleted meanwhile, and that change comes separately.
+			JSONArray serverSources = response.getJSON().getJSONArray("sources");
+			ArrayList<NotifrySource> sources = new ArrayList<NotifrySource>();
+			for( int i = 0; i < serverSources.length(); i++ )
+			{
+				sources.add(this.updateFromServer(serverSources.getJSONObject(i), account, true));
+			}
+
+			// Save them all together.
+			NotifrySource.FACTORY.saveAll(this, sources);
+			Log.d(TAG, "Created/updated " + sources.size() + " sources based on server request.");
+		}
+		else if( operation.equals(NotifryOutboxEntry.OPERATION_SOURCE_GET) || operation.equals(NotifryOutboxEntry.OPERATION_SOURCE_UPDATE) )
+		{
+			// We were fetching or updating a source on the server.
+			// The server would have given us a complete source object.
+			// If it was deleted locally meanwhile, there's nothing to update.
+			JSONObject serverSource = response.getJSON().getJSONObject("source");
+			NotifrySource source = this.updateFromServer(serverSource, account, operation.equals(NotifryOutboxEntry.OPERATION_SOURCE_GET));
+			if( source != null )
+			{
+				// Open the database and save it.
+				source.save(this);
+				Log.d(TAG, "Created/updated source based on server request: local " + source.getId() + " remote: " + source.getServerId());
+			}
+		}
+		else if( operation.equals(NotifryOutboxEntry.OPERATION_REGISTER) )
+		{
+			// Register complete. Record the registration key and server ID.
+			account.setServerRegistrationId(Long.parseLong(response.getJSON().getJSONObject("device").getString("id")));
+			
+			// Enable the account.
+			account.setEnabled(true);
+			
+			// We need a refresh.
+			account.setRequiresSync(true);
+			
+			// Store the registration ID.
+			account.setLastC2DMId(request.getParam("devicekey"));
+			
+			// Persist.
+			account.save(this);
+		}
+		else if( operation.equals(NotifryOutboxEntry.OPERATION_DEREGISTER) )
+		{
+			// We've deregistered the account.
+			account.setServerRegistrationId(null);
+			account.setEnabled(false);
+			account.setLastC2DMId(null);
+			account.save(this);
+		}
+	}
+
+	/**
+	 * Update our copy of a source from the server's copy. The source is not saved.
+	 * @param serverSource
+	 * @param account
+	 * @param create Whether to create the source if we don't have it.
+	 * @return The source, or NULL if we don't have it and create is false.
+	 * @throws JSONException
+	 */
+	private NotifrySource updateFromServer( JSONObject serverSource, NotifryAccount account, boolean create ) throws JSONException
+	{
+		// Try and get an existing source from our database.
+		NotifrySource source = NotifrySource.FACTORY.getByServerId(this, serverSource.getLong("id"));
+		if( source == null )
+		{
+			if( !create )
+			{
+				return null;
+			}
+
+			// New object!
+			source = new NotifrySource();
+			source.setLocalEnabled(true); // Enabled by default.
 		}
+		
+		source.fromJSONObject(serverSource);
+		source.setAccountName(account.getAccountName());
+
+		return source;
 	}
 
 	/**
@@ -135,6 +314,8 @@ public class UpdaterService extends Service
 		{
 			// Fetch out the response.
 			BackendResponse response = (BackendResponse) msg.obj;
+			BackendRequest request = response.getRequest();
+			String operation = (String) request.getMeta("operation");
 
 			// Was it successful?
 			if( response.isError() )
@@ -146,67 +327,34 @@ public class UpdaterService extends Service
 			{
 				try
 				{
-					// Fetch out metadata.
-					BackendRequest request = response.getRequest();
-					String operation = (String) request.getMeta("operation");
-
-					// Determine our operation.
-					if( operation.equals("updatedSource") )
-					{
-						// We were fetching a new or updated source from the server.
-						// Open the database and save it.
-						
-						Long accountId = (Long) request.getMeta("account_id");
-						NotifryAccount account = NotifryAccount.FACTORY.getByServerId(thisService, accountId);
-						
-						Long sourceId = (Long) request.getMeta("source_id");
-						
-						// Try and get an existing source from our database.
-						NotifrySource source = NotifrySource.FACTORY.getByServerId(thisService, sourceId);
-						if( source == null )
-						{
-							// New object!
-							source = new NotifrySource();
-							source.setLocalEnabled(true); // Enabled by default.
-						}
-						
-						// The server would have given us a complete source object.
-						source.fromJSONObject(response.getJSON().getJSONObject("source"));
-						source.setAccountName(account.getAccountName());
-
-						source.save(thisService);
-						
-						Log.d(TAG, "Created/updated source based on server request: local " + source.getId() + " remote: " + sourceId);
-					}
-					else if( operation.equals("register") )
+					NotifryAccount account = NotifryAccount.FACTORY.getByAccountName(thisService, (String) request.getMeta("account_name"));
+					if( account != null )
 					{
-						// Register complete. Record the registration key and server ID.
-						NotifryAccount oldAccount = (NotifryAccount) request.getMeta("account");
-						NotifryAccount account = NotifryAccount.FACTORY.get(thisService, oldAccount.getId());
-						
-						// Set the ID.
-						account.setServerRegistrationId(Long.parseLong(response.getJSON().getJSONObject("device").getString("id")));
-						
-						// Enable the account.
-						account.setEnabled(true);
-						
-						// We need a refresh.
-						account.setRequiresSync(true);
-						
-						// Store the registration ID.
-						account.setLastC2DMId((String) request.getMeta("registration"));
-						
-						// Persist.
-						account.save(thisService);
+						thisService.applyResult(operation, account, request, response);
 					}
 				}
 				catch( JSONException e )
 				{
-					// The response doesn't look like we expected.
+					// The response doesn't look like we expected. Trying again won't help.
 					Log.d(TAG, "Invalid response from server: " + e.getMessage());
-					// And now we've failed. Now what?
 				}
 			}
+
+			// Settle the outbox entry. If it was queued again while this
+			// request was out, it's sent again instead.
+			boolean kept = NotifryOutboxEntry.FACTORY.settle(
+					thisService,
+					(Long) request.getMeta("outbox_id"),
+					(Integer) request.getMeta("outbox_revision"),
+					!response.isError(),
+					response.getError(),
+					response.isRetryable());
+			if( !kept )
+			{
+				Log.e(TAG, "Giving up on " + operation + ": " + response.getError());
+			}
+
+			thisService.scheduleOutbox();
 			
 			// Release the wakelock. Rather important!
 			/*if( thisService.wakelock != null )
@@ -218,5 +366,5 @@ public class UpdaterService extends Service
 				}
 			}*/
 		}
-	};	
+	};
 }
@@ -0,0 +1,160 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.notifry.android.database;
+
+import java.util.HashMap;
+
+import android.database.Cursor;
+
+/**
+ * State shared while inflating the rows of a single result set. Column
+ * indexes are looked up once per cursor rather than once per row, and related
+ * objects (such as the source of a message) are shared between the rows that
+ * refer to them.
+ */
+public class InflationContext
+{
+	private final Cursor cursor;
+	private final String prefix;
+	private final HashMap<String, Integer> columns = new HashMap<String, Integer>();
+	private final HashMap<String, InflationContext> prefixed;
+	private final HashMap<Class<?>, HashMap<Long, Object>> related;
+
+	public InflationContext( Cursor cursor )
+	{
+		this(cursor, "", new HashMap<Class<?>, HashMap<Long, Object>>());
+	}
+
+	private InflationContext( Cursor cursor, String prefix, HashMap<Class<?>, HashMap<Long, Object>> related )
+	{
+		this.cursor = cursor;
+		this.prefix = prefix;
+		this.prefixed = new HashMap<String, InflationContext>();
+		this.related = related;
+	}
+
+	/**
+	 * Get a context that reads the columns with the given prefix, for
+	 * inflating a related object from a joined row. Related objects are
+	 * shared with this context.
+	 * @param columnPrefix
+	 * @return
+	 */
+	public InflationContext forPrefix( String columnPrefix )
+	{
+		InflationContext child = this.prefixed.get(columnPrefix);
+		if( child == null )
+		{
+			child = new InflationContext(this.cursor, this.prefix + columnPrefix, this.related);
+			this.prefixed.put(columnPrefix, child);
+		}
+		return child;
+	}
+
+	/**
+	 * Get the index of the named column, or -1 if the cursor does not have it.
+	 * @param name
+	 * @return
+	 */
+	public int getColumnIndex( String name )
+	{
+		Integer index = this.columns.get(name);
+		if( index == null )
+		{
+			index = this.cursor.getColumnIndex(this.prefix + name);
+			this.columns.put(name, index);
+		}
+		return index;
+	}
+
+	public boolean hasColumn( String name )
+	{
+		return this.getColumnIndex(name) != -1;
+	}
+
+	public boolean isNull( String name )
+	{
+		return this.cursor.isNull(this.getColumnIndex(name));
+	}
+
+	public long getLong( String name )
+	{
+		return this.cursor.getLong(this.getColumnIndex(name));
+	}
+
+	public int getInt( String name )
+	{
+		return this.cursor.getInt(this.getColumnIndex(name));
+	}
+
+	public boolean getBoolean( String name )
+	{
+		return this.cursor.getLong(this.getColumnIndex(name)) != 0;
+	}
+
+	public String getString( String name )
+	{
+		return this.cursor.getString(this.getColumnIndex(name));
+	}
+
+	/**
+	 * Check if a related object has already been stored for this result set.
+	 * @param type
+	 * @param id
+	 * @return
+	 */
+	public boolean hasRelated( Class<?> type, Long id )
+	{
+		HashMap<Long, Object> objects = this.related.get(type);
+		return objects != null && objects.containsKey(id);
+	}
+
+	/**
+	 * Get a related object stored for this result set, or NULL.
+	 * @param type
+	 * @param id
+	 * @return
+	 */
+	public <R> R getRelated( Class<R> type, Long id )
+	{
+		HashMap<Long, Object> objects = this.related.get(type);
+		if( objects == null )
+		{
+			return null;
+		}
+		return type.cast(objects.get(id));
+	}
+
+	/**
+	 * Store a related object, so later rows in the result set can reuse it.
+	 * @param type
+	 * @param id
+	 * @param object
+	 */
+	public <R> void putRelated( Class<R> type, Long id, R object )
+	{
+		HashMap<Long, Object> objects = this.related.get(type);
+		if( objects == null )
+		{
+			objects = new HashMap<Long, Object>();
+			this.related.put(type, objects);
+		}
+		objects.put(id, object);
+	}
+}
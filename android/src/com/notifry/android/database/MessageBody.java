@@ -0,0 +1,162 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.notifry.android.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.content.ContentValues;
+
+/**
+ * Encodes message bodies for the message bodies table. Bodies over a few
+ * hundred bytes are stored deflated; shorter ones aren't worth it.
+ */
+public class MessageBody
+{
+	/**
+	 * Bodies at least this long (in bytes) are compressed.
+	 */
+	static final int COMPRESS_THRESHOLD = 512;
+
+	private static final String CHARSET = "UTF-8";
+
+	/**
+	 * Build the message bodies row for a message.
+	 * @param messageId
+	 * @param body
+	 * @return
+	 */
+	public static ContentValues encode( long messageId, String body )
+	{
+		byte[] data = MessageBody.toBytes(body);
+		boolean compressed = false;
+		if( data.length >= COMPRESS_THRESHOLD )
+		{
+			byte[] deflated = MessageBody.deflate(data);
+			// Only keep the compressed version if it is actually smaller.
+			if( deflated.length < data.length )
+			{
+				data = deflated;
+				compressed = true;
+			}
+		}
+
+		ContentValues values = new ContentValues();
+		values.put(NotifryDatabaseAdapter.KEY_MESSAGE_ID, messageId);
+		values.put(NotifryDatabaseAdapter.KEY_COMPRESSED, compressed ? 1 : 0);
+		values.put(NotifryDatabaseAdapter.KEY_BODY, data);
+		return values;
+	}
+
+	/**
+	 * Get the body back from a stored row.
+	 * @param compressed
+	 * @param data
+	 * @return The body, or NULL if it could not be decompressed.
+	 */
+	public static String decode( boolean compressed, byte[] data )
+	{
+		if( data == null )
+		{
+			return null;
+		}
+		if( compressed )
+		{
+			data = MessageBody.inflate(data);
+			if( data == null )
+			{
+				return null;
+			}
+		}
+		try
+		{
+			return new String(data, CHARSET);
+		}
+		catch( UnsupportedEncodingException e )
+		{
+			// UTF-8 is always supported.
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] toBytes( String body )
+	{
+		try
+		{
+			return body.getBytes(CHARSET);
+		}
+		catch( UnsupportedEncodingException e )
+		{
+			// UTF-8 is always supported.
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] deflate( byte[] data )
+	{
+		Deflater deflater = new Deflater();
+		deflater.setInput(data);
+		deflater.finish();
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2);
+		byte[] buffer = new byte[1024];
+		while( !deflater.finished() )
+		{
+			int count = deflater.deflate(buffer);
+			output.write(buffer, 0, count);
+		}
+		deflater.end();
+		return output.toByteArray();
+	}
+
+	private static byte[] inflate( byte[] data )
+	{
+		Inflater inflater = new Inflater();
+		inflater.setInput(data);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 3);
+		byte[] buffer = new byte[1024];
+		try
+		{
+			while( !inflater.finished() )
+			{
+				int count = inflater.inflate(buffer);
+				if( count == 0 && (inflater.needsInput() || inflater.needsDictionary()) )
+				{
+					// Truncated data - give up rather than spin.
+					return null;
+				}
+				output.write(buffer, 0, count);
+			}
+		}
+		catch( DataFormatException e )
+		{
+			return null;
+		}
+		finally
+		{
+			inflater.end();
+		}
+		return output.toByteArray();
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.notifry.android.database;
+
+import java.util.ArrayList;
+
+import com.notifry.android.R;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Removes old messages according to each source's retention settings.
+ * 
+ * Messages are deleted a small chunk at a time, each in its own short
+ * transaction, so that a large cleanup never holds the database lock for
+ * long enough to block incoming messages or the UI.
+ */
+public class MessageRetention
+{
+	private static final String TAG = "Notifry";
+
+	/**
+	 * How many messages to delete per statement.
+	 */
+	private static final int CHUNK_SIZE = 200;
+
+	/**
+	 * Vacuum once this many messages have been deleted since the last vacuum...
+	 */
+	private static final int VACUUM_DELETED_THRESHOLD = 2000;
+
+	/**
+	 * ... but no more often than this.
+	 */
+	private static final long VACUUM_MIN_INTERVAL = 86400L * 1000 * 7;
+
+	private static final String PREF_DELETED_SINCE_VACUUM = "retentionDeletedSinceVacuum";
+	private static final String PREF_LAST_VACUUM = "retentionLastVacuum";
+
+	private static final long DAY = 86400L * 1000;
+
+	/**
+	 * The outcome of a retention pass.
+	 */
+	public static class Result
+	{
+		private int deleted = 0;
+		private boolean vacuumed = false;
+
+		/**
+		 * The number of messages deleted.
+		 * @return
+		 */
+		public int getDeleted()
+		{
+			return deleted;
+		}
+
+		public boolean getVacuumed()
+		{
+			return vacuumed;
+		}
+	}
+
+	/**
+	 * Apply the retention settings to the messages of every source.
+	 * This should not be called from the UI thread.
+	 * @param context
+	 * @return
+	 */
+	public static Result run( Context context )
+	{
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+		int defaultDays = MessageRetention.parseDays(settings.getString(context.getString(R.string.messageRetentionDays), "1"));
+		long now = System.currentTimeMillis();
+
+		Result result = new Result();
+		ContentResolver resolver = context.getContentResolver();
+		for( NotifryAccount account: NotifryAccount.FACTORY.listAll(context) )
+		{
+			ArrayList<NotifrySource> sources = NotifrySource.FACTORY.listAll(context, account.getAccountName());
+			for( NotifrySource source: sources )
+			{
+				result.deleted += MessageRetention.applyTo(resolver, source, defaultDays, now);
+			}
+		}
+
+		// While we're in the background, make sure the unread counts haven't drifted.
+		NotifryDatabaseAdapter.checkUnreadCounts(context);
+
+		// Vacuum now and again to give the space back.
+		int deletedSinceVacuum = settings.getInt(PREF_DELETED_SINCE_VACUUM, 0) + result.deleted;
+		long lastVacuum = settings.getLong(PREF_LAST_VACUUM, 0);
+		SharedPreferences.Editor editor = settings.edit();
+		if( deletedSinceVacuum >= VACUUM_DELETED_THRESHOLD && now - lastVacuum >= VACUUM_MIN_INTERVAL )
+		{
+			result.vacuumed = NotifryDatabaseAdapter.vacuum(context);
+			if( result.vacuumed )
+			{
+				deletedSinceVacuum = 0;
+				editor.putLong(PREF_LAST_VACUUM, now);
+			}
+		}
+		editor.putInt(PREF_DELETED_SINCE_VACUUM, deletedSinceVacuum);
+		editor.commit();
+
+		Log.i(TAG, "Retention pass deleted " + result.deleted + " messages" + (result.vacuumed ? " and vacuumed the database." : "."));
+		return result;
+	}
+
+	/**
+	 * Apply the retention settings of a single source.
+	 * @param resolver
+	 * @param source
+	 * @param defaultDays The age limit to use if the source doesn't have one.
+	 * @param now
+	 * @return The number of messages deleted.
+	 */
+	private static int applyTo( ContentResolver resolver, NotifrySource source, int defaultDays, long now )
+	{
+		String sourceClause = NotifryDatabaseAdapter.KEY_SOURCE_ID + " = " + source.getId();
+		if( source.getRetentionKeepUnread() )
+		{
+			sourceClause += " AND " + NotifryDatabaseAdapter.KEY_SEEN + " = 1";
+		}
+
+		int deleted = 0;
+		int days = source.getRetentionMaxAge() > 0 ? source.getRetentionMaxAge() : defaultDays;
+		if( days > 0 )
+		{
+			long cutoff = now - days * DAY;
+			deleted += MessageRetention.deleteChunked(resolver,
+					sourceClause + " AND " + NotifryDatabaseAdapter.KEY_TIMESTAMP_MILLIS + " < " + cutoff,
+					0);
+		}
+
+		int maxCount = source.getRetentionMaxCount();
+		if( maxCount > 0 )
+		{
+			// Everything after the newest maxCount messages.
+			deleted += MessageRetention.deleteChunked(resolver,
+					sourceClause + " ORDER BY " + NotifryDatabaseAdapter.KEY_TIMESTAMP_MILLIS + " DESC, " + NotifryDatabaseAdapter.KEY_ID + " DESC",
+					maxCount);
+		}
+
+		return deleted;
+	}
+
+	/**
+	 * Delete the matching messages a chunk at a time.
+	 * @param resolver
+	 * @param selection The WHERE clause (and optional ORDER BY) picking the messages.
+	 * @param offset How many of the matching messages to skip.
+	 * @return The number of messages deleted.
+	 */
+	private static int deleteChunked( ContentResolver resolver, String selection, int offset )
+	{
+		String chunk = NotifryDatabaseAdapter.KEY_ID + " IN (SELECT " + NotifryDatabaseAdapter.KEY_ID +
+				" FROM messages WHERE " + selection + " LIMIT " + CHUNK_SIZE + " OFFSET " + offset + ")";
+
+		int total = 0;
+		int count;
+		do
+		{
+			count = resolver.delete(NotifryDatabaseAdapter.CONTENT_URI_MESSAGES, chunk, null);
+			total += count;
+		}
+		while( count == CHUNK_SIZE );
+
+		return total;
+	}
+
+	/**
+	 * Parse the global retention setting, falling back to one day.
+	 * @param value
+	 * @return
+	 */
+	private static int parseDays( String value )
+	{
+		try
+		{
+			return Math.max(0, Integer.parseInt(value.trim()));
+		}
+		catch( NumberFormatException e )
+		{
+			return 1;
+		}
+	}
+}
@@ -21,6 +21,7 @@ package com.notifry.android.database;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.Future;
 
 import com.notifry.android.remote.BackendRequest;
 
@@ -29,7 +30,6 @@ import android.accounts.AccountManager;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
@@ -37,12 +37,15 @@ import android.os.Handler;
 public class NotifryAccount extends ORM<NotifryAccount>
 {
 	public final static NotifryAccount FACTORY = new NotifryAccount();
+	private final static ObjectCache<NotifryAccount> CACHE = new ObjectCache<NotifryAccount>(FACTORY, NotifryDatabaseAdapter.KEY_ACCOUNT_NAME, NotifryDatabaseAdapter.KEY_SERVER_REGISTRATION_ID);
 	
 	private String accountName = null;
 	private Long serverRegistrationId = null;
 	private Boolean enabled = null;
 	private Boolean requiresSync = true;
 	private String lastC2DMId = null;
+	private String sourceSyncTimestamp = null;
+	private String sourceListETag = null;
 
 	public String getAccountName()
 	{
@@ -94,13 +97,70 @@ public class NotifryAccount extends ORM<NotifryAccount>
 		this.lastC2DMId = lastC2DMId;
 	}
 
+	/**
+	 * Get the server's timestamp for the last source sync, or NULL if the
+	 * sources have never been synced.
+	 * @return
+	 */
+	public String getSourceSyncTimestamp()
+	{
+		return sourceSyncTimestamp;
+	}
+
+	public void setSourceSyncTimestamp( String sourceSyncTimestamp )
+	{
+		this.sourceSyncTimestamp = sourceSyncTimestamp;
+	}
+
+	/**
+	 * Get the ETag of the source list as last synced, or NULL if we don't have one.
+	 * @return
+	 */
+	public String getSourceListETag()
+	{
+		return sourceListETag;
+	}
+
+	public void setSourceListETag( String sourceListETag )
+	{
+		this.sourceListETag = sourceListETag;
+	}
+
 	/**
 	 * Register the device with the server.
 	 * @param context
 	 * @param key
 	 * @param showStatus
+	 * @return A handle that can be used to cancel the request.
+	 */
+	public Future<?> registerWithBackend( Context context, String key, boolean register, String statusMessage, Handler handler, HashMap<String, Object> metadata )
+	{
+		BackendRequest request = this.buildRegistrationRequest(context, key, register);
+
+		// And the callback handler, if required.
+		request.setHandler(handler);
+		
+		// Add any metadata if required.
+		if( metadata != null )
+		{
+			for( String metaKey: metadata.keySet() )
+			{
+				request.addMeta(metaKey, metadata.get(metaKey));
+			}
+		}		
+		
+		// Queue the request.
+		return request.startInThread(context, statusMessage, this.getAccountName());
+	}
+
+	/**
+	 * Build the request to register or deregister the device with the server.
+	 * @param context
+	 * @param key
+	 * @param register
+	 * @return
 	 */
-	public void registerWithBackend( Context context, String key, boolean register, String statusMessage, Handler handler, HashMap<String, Object> metadata )
+	public BackendRequest buildRegistrationRequest( Context context, String key, boolean register )
 	{
 		// Register the device with the server.
 		BackendRequest request;
@@ -143,21 +203,8 @@ public class NotifryAccount extends ORM<NotifryAccount>
 
 		// For debugging, dump the request data.
 		//request.dumpRequest();
-		
-		// And the callback handler, if required.
-		request.setHandler(handler);
-		
-		// Add any metadata if required.
-		if( metadata != null )
-		{
-			for( String metaKey: metadata.keySet() )
-			{
-				request.addMeta(metaKey, metadata.get(metaKey));
-			}
-		}		
-		
-		// Start a thread to make the request.
-		request.startInThread(context, statusMessage, this.getAccountName());
+
+		return request;
 	}
 	
 	public ArrayList<NotifryAccount> listAll( Context context )
@@ -167,12 +214,12 @@ public class NotifryAccount extends ORM<NotifryAccount>
 	
 	public NotifryAccount getByAccountName( Context context, String accountName )
 	{
-		return this.getOne(context, NotifryDatabaseAdapter.KEY_ACCOUNT_NAME + "=?", new String[] { accountName });
+		return CACHE.findOne(context, NotifryDatabaseAdapter.KEY_ACCOUNT_NAME, accountName);
 	}
 	
 	public NotifryAccount getByServerId( Context context, Long serverId )
 	{
-		return this.getOne(context, NotifryDatabaseAdapter.KEY_SERVER_REGISTRATION_ID + "=" + serverId, null);
+		return CACHE.findOne(context, NotifryDatabaseAdapter.KEY_SERVER_REGISTRATION_ID, serverId);
 	}
 	
 	public void deleteByAccountName( Context context, String accountName )
@@ -242,21 +289,25 @@ public class NotifryAccount extends ORM<NotifryAccount>
 		values.put(NotifryDatabaseAdapter.KEY_SERVER_REGISTRATION_ID, this.getServerRegistrationId());
 		values.put(NotifryDatabaseAdapter.KEY_REQUIRES_SYNC, this.getRequiresSync() ? 1 : 0);
 		values.put(NotifryDatabaseAdapter.KEY_LAST_C2DM_ID, this.getLastC2DMId());
+		values.put(NotifryDatabaseAdapter.KEY_SOURCE_SYNC_TIMESTAMP, this.getSourceSyncTimestamp());
+		values.put(NotifryDatabaseAdapter.KEY_SOURCE_LIST_ETAG, this.getSourceListETag());
 
 		return values;
 	}
 
 	@Override
-	protected NotifryAccount inflate( Context context, Cursor cursor )
+	protected NotifryAccount inflate( Context context, InflationContext row )
 	{
 		NotifryAccount account = new NotifryAccount();
 		account = new NotifryAccount();
-		account.setAccountName(cursor.getString(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_ACCOUNT_NAME)));
-		account.setId(cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_ID)));
-		account.setEnabled(cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_ENABLED)) == 0 ? false : true);
-		account.setServerRegistrationId(cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_SERVER_REGISTRATION_ID)));
-		account.setRequiresSync(cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_REQUIRES_SYNC)) == 0 ? false : true);
-		account.setLastC2DMId(cursor.getString(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_LAST_C2DM_ID)));
+		account.setAccountName(row.getString(NotifryDatabaseAdapter.KEY_ACCOUNT_NAME));
+		account.setId(row.getLong(NotifryDatabaseAdapter.KEY_ID));
+		account.setEnabled(row.getBoolean(NotifryDatabaseAdapter.KEY_ENABLED));
+		account.setServerRegistrationId(row.getLong(NotifryDatabaseAdapter.KEY_SERVER_REGISTRATION_ID));
+		account.setRequiresSync(row.getBoolean(NotifryDatabaseAdapter.KEY_REQUIRES_SYNC));
+		account.setLastC2DMId(row.getString(NotifryDatabaseAdapter.KEY_LAST_C2DM_ID));
+		account.setSourceSyncTimestamp(row.getString(NotifryDatabaseAdapter.KEY_SOURCE_SYNC_TIMESTAMP));
+		account.setSourceListETag(row.getString(NotifryDatabaseAdapter.KEY_SOURCE_LIST_ETAG));
 		
 		if( account.getServerRegistrationId() == 0 )
 		{
@@ -265,6 +316,12 @@ public class NotifryAccount extends ORM<NotifryAccount>
 		return account;
 	}
 
+	@Override
+	protected ObjectCache<NotifryAccount> getCache()
+	{
+		return CACHE;
+	}
+
 	@Override
 	protected String[] getProjection()
 	{
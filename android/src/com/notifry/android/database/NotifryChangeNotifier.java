@@ -0,0 +1,115 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.notifry.android.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Coalesces content change notifications. URIs marked as changed are held
+ * for a short window, and then each distinct URI is notified once, so that
+ * a burst of writes causes one requery per observer rather than one per row.
+ */
+public class NotifryChangeNotifier
+{
+	/**
+	 * How long to wait for further changes before notifying, in milliseconds.
+	 */
+	public static final long DEBOUNCE_WINDOW = 200;
+
+	private final ContentResolver resolver;
+	private final Handler handler;
+	private final LinkedHashSet<Uri> pending = new LinkedHashSet<Uri>();
+	private boolean scheduled = false;
+
+	private final Runnable flushRunnable = new Runnable()
+	{
+		public void run()
+		{
+			flush();
+		}
+	};
+
+	public NotifryChangeNotifier( Context context )
+	{
+		this.resolver = context.getContentResolver();
+		this.handler = new Handler(Looper.getMainLooper());
+	}
+
+	/**
+	 * Mark the given URI as changed. Observers are notified once the debounce
+	 * window has passed.
+	 * @param uri
+	 */
+	public void changed( Uri uri )
+	{
+		synchronized( this.pending )
+		{
+			this.pending.add(uri);
+			if( !this.scheduled )
+			{
+				this.scheduled = true;
+				this.handler.postDelayed(this.flushRunnable, DEBOUNCE_WINDOW);
+			}
+		}
+	}
+
+	/**
+	 * Mark all the given URIs as changed, and notify immediately.
+	 * @param uris
+	 */
+	public void changedNow( Collection<Uri> uris )
+	{
+		synchronized( this.pending )
+		{
+			this.pending.addAll(uris);
+		}
+		this.flush();
+	}
+
+	/**
+	 * Notify observers of all the pending URIs now.
+	 */
+	public void flush()
+	{
+		ArrayList<Uri> changed;
+		synchronized( this.pending )
+		{
+			if( this.scheduled )
+			{
+				this.handler.removeCallbacks(this.flushRunnable);
+				this.scheduled = false;
+			}
+			changed = new ArrayList<Uri>(this.pending);
+			this.pending.clear();
+		}
+
+		for( Uri uri: changed )
+		{
+			this.resolver.notifyChange(uri, null);
+		}
+	}
+}
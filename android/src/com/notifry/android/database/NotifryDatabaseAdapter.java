@@ -21,17 +21,25 @@
 
 package com.notifry.android.database;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.util.Log;
 
 public class NotifryDatabaseAdapter extends ContentProvider
 {
@@ -42,6 +50,11 @@ public class NotifryDatabaseAdapter extends ContentProvider
 	public static final Uri CONTENT_URI_ACCOUNTS = Uri.parse("content://"+ PROVIDER_NAME_ACCOUNTS + "/accounts");
     public static final Uri CONTENT_URI_SOURCES = Uri.parse("content://"+ PROVIDER_NAME_SOURCES + "/sources");
     public static final Uri CONTENT_URI_MESSAGES = Uri.parse("content://"+ PROVIDER_NAME_MESSAGES + "/messages");
+    public static final Uri CONTENT_URI_MESSAGES_WITH_SOURCES = Uri.parse("content://"+ PROVIDER_NAME_MESSAGES + "/messages_with_sources");
+    public static final Uri CONTENT_URI_UNREAD_COUNTS = Uri.parse("content://"+ PROVIDER_NAME_MESSAGES + "/unread_counts");
+    public static final Uri CONTENT_URI_MESSAGE_COUNTS = Uri.parse("content://"+ PROVIDER_NAME_MESSAGES + "/message_counts");
+    public static final Uri CONTENT_URI_MESSAGE_BODIES = Uri.parse("content://"+ PROVIDER_NAME_MESSAGES + "/message_bodies");
+    public static final Uri CONTENT_URI_OUTBOX = Uri.parse("content://"+ PROVIDER_NAME_ACCOUNTS + "/outbox");
     
     private static final int ACCOUNTS = 1;
     private static final int ACCOUNT_ID = 2;
@@ -49,6 +62,13 @@ public class NotifryDatabaseAdapter extends ContentProvider
     private static final int SOURCE_ID = 4;
     private static final int MESSAGES = 5;
     private static final int MESSAGE_ID = 6;    
+    private static final int MESSAGES_WITH_SOURCES = 7;
+    private static final int MESSAGE_WITH_SOURCE_ID = 8;
+    private static final int UNREAD_COUNTS = 9;
+    private static final int OUTBOX = 10;
+    private static final int OUTBOX_ID = 11;
+    private static final int MESSAGE_COUNTS = 12;
+    private static final int MESSAGE_BODIES = 13;
     
     private static final UriMatcher uriMatcher;
     static
@@ -60,6 +80,13 @@ public class NotifryDatabaseAdapter extends ContentProvider
     	uriMatcher.addURI(PROVIDER_NAME_SOURCES, "sources/#", SOURCE_ID);
     	uriMatcher.addURI(PROVIDER_NAME_MESSAGES, "messages", MESSAGES);
     	uriMatcher.addURI(PROVIDER_NAME_MESSAGES, "messages/#", MESSAGE_ID);
+    	uriMatcher.addURI(PROVIDER_NAME_MESSAGES, "messages_with_sources", MESSAGES_WITH_SOURCES);
+    	uriMatcher.addURI(PROVIDER_NAME_MESSAGES, "messages_with_sources/#", MESSAGE_WITH_SOURCE_ID);
+    	uriMatcher.addURI(PROVIDER_NAME_MESSAGES, "unread_counts", UNREAD_COUNTS);
+    	uriMatcher.addURI(PROVIDER_NAME_MESSAGES, "message_counts", MESSAGE_COUNTS);
+    	uriMatcher.addURI(PROVIDER_NAME_MESSAGES, "message_bodies", MESSAGE_BODIES);
+    	uriMatcher.addURI(PROVIDER_NAME_ACCOUNTS, "outbox", OUTBOX);
+    	uriMatcher.addURI(PROVIDER_NAME_ACCOUNTS, "outbox/#", OUTBOX_ID);
     }
 	
 	private static final String TAG = "Notifry";
@@ -70,12 +97,15 @@ public class NotifryDatabaseAdapter extends ContentProvider
 	public static final String KEY_SERVER_ENABLED = "server_enabled";
 	public static final String KEY_LOCAL_ENABLED = "local_enabled";
 	public static final String KEY_LAST_C2DM_ID = "last_c2dm_id";
+	public static final String KEY_SOURCE_SYNC_TIMESTAMP = "source_sync_timestamp";
+	public static final String KEY_SOURCE_LIST_ETAG = "source_list_etag";
 	public static final String KEY_TITLE = "title";
 	public static final String KEY_SOURCE_KEY = "source_key";
 	public static final String KEY_SERVER_ID = "server_id";
 	public static final String KEY_CHANGE_TIMESTAMP = "change_timestamp";
 	public static final String KEY_SOURCE_ID = "source_id";
 	public static final String KEY_TIMESTAMP = "timestamp";
+	public static final String KEY_TIMESTAMP_MILLIS = "timestamp_millis";
 	public static final String KEY_MESSAGE = "message";
 	public static final String KEY_URL = "url";
 	public static final String KEY_SEEN = "seen";
@@ -86,21 +116,99 @@ public class NotifryDatabaseAdapter extends ContentProvider
 	public static final String KEY_CUSTOM_RINGTONE = "custom_ringtone";
 	public static final String KEY_LED_FLASH = "led_flash";
 	public static final String KEY_SPEAK_MESSAGE = "speak_message";
+	public static final String KEY_RETENTION_MAX_AGE = "retention_max_age";
+	public static final String KEY_RETENTION_MAX_COUNT = "retention_max_count";
+	public static final String KEY_RETENTION_KEEP_UNREAD = "retention_keep_unread";
+	public static final String KEY_UNREAD = "unread";
+	public static final String KEY_TOTAL = "total";
+	public static final String KEY_MESSAGE_ID = "message_id";
+	public static final String KEY_COMPRESSED = "compressed";
+	public static final String KEY_BODY = "body";
+	public static final String KEY_OPERATION = "operation";
+	public static final String KEY_DEDUPE_KEY = "dedupe_key";
+	public static final String KEY_URI = "uri";
+	public static final String KEY_PARAMS = "params";
+	public static final String KEY_ATTEMPTS = "attempts";
+	public static final String KEY_NEXT_ATTEMPT = "next_attempt";
+	public static final String KEY_LAST_ERROR = "last_error";
+	public static final String KEY_REVISION = "revision";
+	public static final String KEY_IN_FLIGHT = "in_flight";
 	
-	public static final String[] ACCOUNT_PROJECTION = new String[] { KEY_ID, KEY_ACCOUNT_NAME, KEY_ENABLED, KEY_SERVER_REGISTRATION_ID, KEY_REQUIRES_SYNC, KEY_LAST_C2DM_ID };
-	public static final String[] SOURCE_PROJECTION = new String[] { KEY_ID, KEY_ACCOUNT_NAME, KEY_CHANGE_TIMESTAMP, KEY_TITLE, KEY_SERVER_ID, KEY_SOURCE_KEY, KEY_SERVER_ENABLED, KEY_LOCAL_ENABLED, KEY_USE_GLOBAL_NOTIFICATION, KEY_VIBRATE, KEY_RINGTONE, KEY_CUSTOM_RINGTONE, KEY_LED_FLASH, KEY_SPEAK_MESSAGE };
-	public static final String[] MESSAGE_PROJECTION = new String[] { KEY_ID, KEY_SOURCE_ID, KEY_TIMESTAMP, KEY_TITLE, KEY_MESSAGE, KEY_URL, KEY_SERVER_ID, KEY_SEEN };	
+	public static final String[] ACCOUNT_PROJECTION = new String[] { KEY_ID, KEY_ACCOUNT_NAME, KEY_ENABLED, KEY_SERVER_REGISTRATION_ID, KEY_REQUIRES_SYNC, KEY_LAST_C2DM_ID, KEY_SOURCE_SYNC_TIMESTAMP, KEY_SOURCE_LIST_ETAG };
+	public static final String[] OUTBOX_PROJECTION = new String[] { KEY_ID, KEY_OPERATION, KEY_DEDUPE_KEY, KEY_ACCOUNT_NAME, KEY_URI, KEY_PARAMS, KEY_ATTEMPTS, KEY_NEXT_ATTEMPT, KEY_LAST_ERROR, KEY_REVISION, KEY_IN_FLIGHT };
+	public static final String[] SOURCE_PROJECTION = new String[] { KEY_ID, KEY_ACCOUNT_NAME, KEY_CHANGE_TIMESTAMP, KEY_TITLE, KEY_SERVER_ID, KEY_SOURCE_KEY, KEY_SERVER_ENABLED, KEY_LOCAL_ENABLED, KEY_USE_GLOBAL_NOTIFICATION, KEY_VIBRATE, KEY_RINGTONE, KEY_CUSTOM_RINGTONE, KEY_LED_FLASH, KEY_SPEAK_MESSAGE, KEY_RETENTION_MAX_AGE, KEY_RETENTION_MAX_COUNT, KEY_RETENTION_KEEP_UNREAD };
+	public static final String[] MESSAGE_PROJECTION = new String[] { KEY_ID, KEY_SOURCE_ID, KEY_TIMESTAMP, KEY_TIMESTAMP_MILLIS, KEY_TITLE, KEY_URL, KEY_SERVER_ID, KEY_SEEN };
+	public static final String[] MESSAGE_BODY_PROJECTION = new String[] { KEY_COMPRESSED, KEY_BODY };	
+
+	/**
+	 * Query parameter to limit the number of rows a query returns.
+	 */
+	public static final String QUERY_LIMIT = "limit";
+
+	/**
+	 * In the messages with sources view, the source columns are named with this
+	 * prefix - for example, the source title is "source_title".
+	 */
+	public static final String SOURCE_COLUMN_PREFIX = "source_";
+	public static final String[] MESSAGE_WITH_SOURCE_PROJECTION;
+	static
+	{
+		MESSAGE_WITH_SOURCE_PROJECTION = new String[MESSAGE_PROJECTION.length + SOURCE_PROJECTION.length];
+		int i = 0;
+		for( String column: MESSAGE_PROJECTION )
+		{
+			MESSAGE_WITH_SOURCE_PROJECTION[i++] = column;
+		}
+		for( String column: SOURCE_PROJECTION )
+		{
+			MESSAGE_WITH_SOURCE_PROJECTION[i++] = SOURCE_COLUMN_PREFIX + column;
+		}
+	}
 
 	private SQLiteDatabase db;
 
+	/**
+	 * The database helper, shared by all the providers so they use the one
+	 * connection, and transactions can cover more than one table.
+	 */
+	private static DatabaseHelper databaseHelper = null;
+
+	/**
+	 * Coalesces the change notifications from all the providers.
+	 */
+	private static NotifryChangeNotifier notifier = null;
+
+	/**
+	 * The content URIs changed during the batch running on this thread, or NULL
+	 * if this thread is not running a batch.
+	 */
+	private static final ThreadLocal<LinkedHashSet<Uri>> batchChanges = new ThreadLocal<LinkedHashSet<Uri>>();
+
 	private static final String DATABASE_CREATE_ACCOUNTS = "create table accounts (_id integer primary key autoincrement, " +
 			"account_name text not null, " +
 			"server_registration_id long, " +
 			"enabled integer not null, " +
 			"requires_sync integer not null, " +
-			"last_c2dm_id text " +
+			"last_c2dm_id text, " +
+			"source_sync_timestamp text, " +
+			"source_list_etag text " +
 			");";
 
+	private static final String DATABASE_CREATE_OUTBOX = "create table outbox (_id integer primary key autoincrement, " +
+			"operation text not null, " +
+			"dedupe_key text not null unique, " +
+			"account_name text not null, " +
+			"uri text not null, " +
+			"params text not null, " +
+			"attempts integer not null default 0, " +
+			"next_attempt integer not null default 0, " +
+			"last_error text, " +
+			"revision integer not null default 0, " +
+			"in_flight integer not null default 0" +
+			");";
+
+	private static final String DATABASE_CREATE_OUTBOX_INDEX = "CREATE INDEX outbox_next_attempt ON outbox (next_attempt)";
+
 	private static final String DATABASE_CREATE_SOURCES = "create table sources (_id integer primary key autoincrement, " +
 			"account_name text not null, " +
 			"change_timestamp text not null, " +
@@ -114,25 +222,121 @@ public class NotifryDatabaseAdapter extends ContentProvider
 			"ringtone integer not null, " +
 			"custom_ringtone text not null, " +
 			"led_flash integer not null, " +
-			"speak_message integer not null " +
+			"speak_message integer not null, " +
+			"retention_max_age integer not null default 0, " +
+			"retention_max_count integer not null default 0, " +
+			"retention_keep_unread integer not null default 0" +
 			");";
 
 	private static final String DATABASE_CREATE_MESSAGES = "create table messages (_id integer primary key autoincrement, " +
 			"source_id integer not null, " +
 			"server_id integer not null, " +
 			"timestamp text not null, " +
+			"timestamp_millis integer not null default 0, " +
 			"title text not null, " +
 			"message text not null, " +
 			"url text, " +
 			"seen integer not null " +
 			");";
 
+	/**
+	 * Indexes for the messages table. The unread count and the per source listing
+	 * are the hot queries, and the timestamp index serves the age based cleanup.
+	 */
+	private static final String[] DATABASE_CREATE_MESSAGES_INDEXES = new String[] {
+			"create index messages_source_seen on messages (source_id, seen);",
+			"create index messages_source_timestamp on messages (source_id, timestamp_millis);",
+			"create index messages_timestamp on messages (timestamp_millis);"
+	};
+
+	/**
+	 * A message is unique by its source and server ID - the server (or the push
+	 * service) may deliver the same message more than once.
+	 */
+	private static final String DATABASE_CREATE_MESSAGES_UNIQUE = "create unique index messages_source_server on messages (source_id, server_id);";
+
+	/**
+	 * SQL expression to convert the ISO8601 (UTC) timestamp column into epoch milliseconds.
+	 * julianday() copes with the optional fractional seconds the server sends.
+	 */
+	private static final String SQL_TIMESTAMP_TO_MILLIS = "IFNULL(CAST(ROUND((julianday(timestamp) - 2440587.5) * 86400000) AS INTEGER), 0)";
+
+	/**
+	 * How many messages to convert per chunk when upgrading the timestamps or the bodies.
+	 */
+	private static final int BACKFILL_CHUNK_SIZE = 500;
+
+	/**
+	 * The number of unseen messages per source. This is maintained by the
+	 * triggers below, in the same transaction as the change to the messages,
+	 * so the count is a primary key lookup rather than a scan of the messages.
+	 */
+	private static final String DATABASE_CREATE_UNREAD_COUNTS = "create table unread_counts (source_id integer primary key, " +
+			"unread integer not null default 0" +
+			");";
+
+	private static final String[] DATABASE_CREATE_UNREAD_TRIGGERS = new String[] {
+		"CREATE TRIGGER unread_counts_insert AFTER INSERT ON messages WHEN new.seen = 0 BEGIN " +
+			"INSERT OR IGNORE INTO unread_counts (source_id, unread) VALUES (new.source_id, 0); " +
+			"UPDATE unread_counts SET unread = unread + 1 WHERE source_id = new.source_id; " +
+			"END",
+		"CREATE TRIGGER unread_counts_delete AFTER DELETE ON messages WHEN old.seen = 0 BEGIN " +
+			"UPDATE unread_counts SET unread = unread - 1 WHERE source_id = old.source_id; " +
+			"END",
+		"CREATE TRIGGER unread_counts_update AFTER UPDATE OF seen, source_id ON messages " +
+			"WHEN old.seen != new.seen OR old.source_id != new.source_id BEGIN " +
+			"UPDATE unread_counts SET unread = unread - 1 WHERE old.seen = 0 AND source_id = old.source_id; " +
+			"INSERT OR IGNORE INTO unread_counts (source_id, unread) VALUES (new.source_id, 0); " +
+			"UPDATE unread_counts SET unread = unread + 1 WHERE new.seen = 0 AND source_id = new.source_id; " +
+			"END",
+		"CREATE TRIGGER unread_counts_source_delete AFTER DELETE ON sources BEGIN " +
+			"DELETE FROM unread_counts WHERE source_id = old._id; " +
+			"END"
+	};
+
+	/**
+	 * Full text index of the message titles and bodies. The docid is the
+	 * message ID, and the triggers keep it in step with the messages table.
+	 */
+	private static final String DATABASE_CREATE_MESSAGES_FTS = "CREATE VIRTUAL TABLE messages_fts USING fts3(title, message);";
+
+	/**
+	 * The bodies are written to the index along with the message bodies table,
+	 * as they may be compressed, so these triggers only cover the rest.
+	 */
+	private static final String[] DATABASE_CREATE_MESSAGES_FTS_TRIGGERS = new String[] {
+		"CREATE TRIGGER messages_fts_delete AFTER DELETE ON messages BEGIN " +
+			"DELETE FROM messages_fts WHERE docid = old._id; " +
+			"END",
+		"CREATE TRIGGER messages_fts_title AFTER UPDATE OF title ON messages WHEN old.title != new.title BEGIN " +
+			"UPDATE messages_fts SET title = new.title WHERE docid = old._id; " +
+			"END"
+	};
+
+	/**
+	 * The message bodies, kept apart from the messages so that listing
+	 * messages only reads the small summary rows. Long bodies are deflated.
+	 * The body column of the messages table is left empty.
+	 */
+	private static final String DATABASE_CREATE_MESSAGE_BODIES = "create table message_bodies (message_id integer primary key, " +
+			"compressed integer not null default 0, " +
+			"body blob not null" +
+			");";
+
+	private static final String DATABASE_CREATE_MESSAGE_BODIES_TRIGGER = "CREATE TRIGGER message_bodies_delete AFTER DELETE ON messages BEGIN " +
+			"DELETE FROM message_bodies WHERE message_id = old._id; " +
+			"END";
+
 	private static final String DATABASE_NAME = "notifry";
 	private static final String DATABASE_TABLE_ACCOUNTS = "accounts";
 	private static final String DATABASE_TABLE_SOURCES = "sources";
 	private static final String DATABASE_TABLE_MESSAGES = "messages";
+	private static final String DATABASE_VIEW_MESSAGES_WITH_SOURCES = "messages_with_sources";
+	private static final String DATABASE_TABLE_UNREAD_COUNTS = "unread_counts";
+	private static final String DATABASE_TABLE_OUTBOX = "outbox";
+	private static final String DATABASE_TABLE_MESSAGE_BODIES = "message_bodies";
 
-	private static final int DATABASE_VERSION = 3;
+	private static final int DATABASE_VERSION = 14;
 
 	/**
 	 * Database helper class to create and manage the schema.
@@ -148,8 +352,39 @@ public class NotifryDatabaseAdapter extends ContentProvider
 		public void onCreate( SQLiteDatabase db )
 		{
 			db.execSQL(DATABASE_CREATE_ACCOUNTS);
+			db.execSQL(DATABASE_CREATE_OUTBOX);
+			db.execSQL(DATABASE_CREATE_OUTBOX_INDEX);
 			db.execSQL(DATABASE_CREATE_SOURCES);
 			db.execSQL(DATABASE_CREATE_MESSAGES);
+			for( String index: DATABASE_CREATE_MESSAGES_INDEXES )
+			{
+				db.execSQL(index);
+			}
+			db.execSQL(DATABASE_CREATE_MESSAGES_UNIQUE);
+			db.execSQL(DATABASE_CREATE_UNREAD_COUNTS);
+			for( String trigger: DATABASE_CREATE_UNREAD_TRIGGERS )
+			{
+				db.execSQL(trigger);
+			}
+			db.execSQL(DATABASE_CREATE_MESSAGES_FTS);
+			for( String trigger: DATABASE_CREATE_MESSAGES_FTS_TRIGGERS )
+			{
+				db.execSQL(trigger);
+			}
+			db.execSQL(DATABASE_CREATE_MESSAGE_BODIES);
+			db.execSQL(DATABASE_CREATE_MESSAGE_BODIES_TRIGGER);
+			createViews(db);
+		}
+
+		@Override
+		public void onOpen( SQLiteDatabase db )
+		{
+			super.onOpen(db);
+			if( !db.isReadOnly() )
+			{
+				// Finish off the timestamp backfill, if it was interrupted.
+				backfillMessageTimestamps(db);
+			}
 		}
 
 		@Override
@@ -165,6 +400,235 @@ public class NotifryDatabaseAdapter extends ContentProvider
 				db.execSQL("ALTER TABLE sources ADD COLUMN custom_ringtone text not null default '';");
 				db.execSQL("ALTER TABLE sources ADD COLUMN led_flash integer not null default 0;");
 			}
+			// v4: integer timestamps on messages, and indexes for the common queries.
+			if( oldVersion < 4 )
+			{
+				db.execSQL("ALTER TABLE messages ADD COLUMN timestamp_millis integer not null default 0;");
+				// The timestamps are filled in once the upgrade is committed - see onOpen().
+				for( String index: DATABASE_CREATE_MESSAGES_INDEXES )
+				{
+					db.execSQL(index);
+				}
+			}
+			// v6: unread counts per source, maintained by triggers.
+			if( oldVersion < 6 )
+			{
+				db.execSQL(DATABASE_CREATE_UNREAD_COUNTS);
+				for( String trigger: DATABASE_CREATE_UNREAD_TRIGGERS )
+				{
+					db.execSQL(trigger);
+				}
+				rebuildUnreadCounts(db);
+			}
+			// v7: drop duplicated messages (keeping the first copy) so they can be made unique.
+			if( oldVersion < 7 )
+			{
+				db.execSQL("DELETE FROM messages WHERE _id NOT IN (SELECT MIN(_id) FROM messages GROUP BY source_id, server_id)");
+				db.execSQL(DATABASE_CREATE_MESSAGES_UNIQUE);
+			}
+			// v8: when the sources were last synced, so only changes need to be fetched.
+			if( oldVersion < 8 )
+			{
+				db.execSQL("ALTER TABLE accounts ADD COLUMN source_sync_timestamp text;");
+			}
+			// v9: the ETag of the source list, for conditional requests.
+			if( oldVersion < 9 )
+			{
+				db.execSQL("ALTER TABLE accounts ADD COLUMN source_list_etag text;");
+			}
+			// v10: the outbox of backend operations waiting to be retried.
+			if( oldVersion < 10 )
+			{
+				db.execSQL(DATABASE_CREATE_OUTBOX);
+				db.execSQL(DATABASE_CREATE_OUTBOX_INDEX);
+			}
+			// v11: per source message retention.
+			if( oldVersion < 11 )
+			{
+				db.execSQL("ALTER TABLE sources ADD COLUMN retention_max_age integer not null default 0;");
+				db.execSQL("ALTER TABLE sources ADD COLUMN retention_max_count integer not null default 0;");
+				db.execSQL("ALTER TABLE sources ADD COLUMN retention_keep_unread integer not null default 0;");
+			}
+			// v12: the full text search index.
+			if( oldVersion < 12 )
+			{
+				db.execSQL(DATABASE_CREATE_MESSAGES_FTS);
+				fillSearchIndex(db);
+			}
+			// v13: the message bodies move to their own table, and the search
+			// index triggers no longer see them.
+			if( oldVersion < 13 )
+			{
+				db.execSQL("DROP TRIGGER IF EXISTS messages_fts_insert");
+				db.execSQL("DROP TRIGGER IF EXISTS messages_fts_update");
+				db.execSQL("DROP TRIGGER IF EXISTS messages_fts_delete");
+				for( String trigger: DATABASE_CREATE_MESSAGES_FTS_TRIGGERS )
+				{
+					db.execSQL(trigger);
+				}
+				db.execSQL(DATABASE_CREATE_MESSAGE_BODIES);
+				db.execSQL(DATABASE_CREATE_MESSAGE_BODIES_TRIGGER);
+				db.execSQL("INSERT INTO message_bodies (message_id, compressed, body) SELECT _id, 0, CAST(message AS BLOB) FROM messages");
+				db.execSQL("UPDATE messages SET message = ''");
+				compressBodies(db);
+			}
+			// v14: outbox revisions, so changes made while a request is out aren't lost.
+			if( oldVersion < 14 )
+			{
+				db.execSQL("ALTER TABLE outbox ADD COLUMN revision integer not null default 0;");
+				db.execSQL("ALTER TABLE outbox ADD COLUMN in_flight integer not null default 0;");
+			}
+			// The views depend on the table columns, so recreate them after any upgrade.
+			createViews(db);
+		}
+
+		/**
+		 * Check that the unread counts match the messages table, and rebuild them
+		 * if they don't.
+		 * @param db
+		 */
+		private static void checkUnreadCounts( SQLiteDatabase db )
+		{
+			long mismatches = DatabaseUtils.longForQuery(db,
+					"SELECT COUNT(*) FROM " +
+					"(SELECT source_id, COUNT(*) AS unread FROM messages WHERE seen = 0 GROUP BY source_id) AS actual " +
+					"LEFT JOIN unread_counts ON unread_counts.source_id = actual.source_id " +
+					"WHERE unread_counts.unread IS NULL OR unread_counts.unread != actual.unread",
+					null);
+			mismatches += DatabaseUtils.longForQuery(db,
+					"SELECT COUNT(*) FROM unread_counts WHERE unread != 0 AND NOT EXISTS " +
+					"(SELECT 1 FROM messages WHERE messages.source_id = unread_counts.source_id AND seen = 0)",
+					null);
+
+			if( mismatches > 0 )
+			{
+				Log.w(TAG, "Unread counts were inconsistent for " + mismatches + " sources; rebuilding.");
+				rebuildUnreadCounts(db);
+			}
+		}
+
+		/**
+		 * Rebuild the unread counts from the messages table.
+		 * @param db
+		 */
+		private static void rebuildUnreadCounts( SQLiteDatabase db )
+		{
+			db.beginTransaction();
+			try
+			{
+				db.execSQL("DELETE FROM unread_counts");
+				db.execSQL("INSERT INTO unread_counts (source_id, unread) SELECT source_id, COUNT(*) FROM messages WHERE seen = 0 GROUP BY source_id");
+				db.setTransactionSuccessful();
+			}
+			finally
+			{
+				db.endTransaction();
+			}
+		}
+
+		/**
+		 * Compress the long bodies that were moved across uncompressed. The
+		 * table is walked in chunks by message ID, as the rows being rewritten
+		 * would otherwise drop out from under the cursor's query.
+		 * @param db
+		 */
+		private void compressBodies( SQLiteDatabase db )
+		{
+			long lastId = 0;
+			int count;
+			do
+			{
+				count = 0;
+				Cursor cursor = db.rawQuery("SELECT message_id, body FROM message_bodies WHERE message_id > ? ORDER BY message_id LIMIT " + BACKFILL_CHUNK_SIZE,
+						new String[] { Long.toString(lastId) });
+				try
+				{
+					while( cursor.moveToNext() )
+					{
+						count++;
+						lastId = cursor.getLong(0);
+						byte[] body = cursor.getBlob(1);
+						if( body.length < MessageBody.COMPRESS_THRESHOLD )
+						{
+							continue;
+						}
+
+						ContentValues values = MessageBody.encode(lastId, MessageBody.decode(false, body));
+						if( values.getAsInteger(KEY_COMPRESSED) != 0 )
+						{
+							db.replace(DATABASE_TABLE_MESSAGE_BODIES, null, values);
+						}
+					}
+				}
+				finally
+				{
+					cursor.close();
+				}
+			}
+			while( count == BACKFILL_CHUNK_SIZE );
+		}
+
+		/**
+		 * Create (or recreate) the views. The messages with sources view has all
+		 * the message columns, plus the source columns with a prefix, so
+		 * messages can be listed with their sources in one query.
+		 * @param db
+		 */
+		private void createViews( SQLiteDatabase db )
+		{
+			StringBuilder columns = new StringBuilder();
+			for( String column: MESSAGE_PROJECTION )
+			{
+				columns.append(DATABASE_TABLE_MESSAGES).append('.').append(column).append(" AS ").append(column).append(", ");
+			}
+			for( String column: SOURCE_PROJECTION )
+			{
+				columns.append(DATABASE_TABLE_SOURCES).append('.').append(column).append(" AS ").append(SOURCE_COLUMN_PREFIX).append(column).append(", ");
+			}
+			columns.setLength(columns.length() - 2);
+
+			db.execSQL("DROP VIEW IF EXISTS " + DATABASE_VIEW_MESSAGES_WITH_SOURCES);
+			db.execSQL("CREATE VIEW " + DATABASE_VIEW_MESSAGES_WITH_SOURCES + " AS SELECT " + columns +
+					" FROM " + DATABASE_TABLE_MESSAGES + " LEFT JOIN " + DATABASE_TABLE_SOURCES +
+					" ON " + DATABASE_TABLE_MESSAGES + "." + KEY_SOURCE_ID + " = " + DATABASE_TABLE_SOURCES + "." + KEY_ID);
+		}
+
+		/**
+		 * Fill in the integer timestamp for messages that don't have one yet,
+		 * from the text timestamp. This runs on every open, after any upgrade's
+		 * transaction has been committed, so a backfill that was interrupted
+		 * carries on where it left off; with nothing to do, it's a single index
+		 * lookup. Each chunk of IDs is its own short transaction, so a large
+		 * table doesn't hold the lock (or grow the journal) for the whole backfill.
+		 * @param db
+		 */
+		private void backfillMessageTimestamps( SQLiteDatabase db )
+		{
+			long lastId = 0;
+			while( true )
+			{
+				long chunkEnd = DatabaseUtils.longForQuery(db,
+						"SELECT IFNULL(MAX(_id), 0) FROM (SELECT _id FROM messages WHERE timestamp_millis = 0 AND _id > ? ORDER BY _id LIMIT " + BACKFILL_CHUNK_SIZE + ")",
+						new String[] { Long.toString(lastId) });
+				if( chunkEnd == 0 )
+				{
+					break;
+				}
+
+				db.beginTransaction();
+				try
+				{
+					db.execSQL(
+							"UPDATE messages SET timestamp_millis = " + SQL_TIMESTAMP_TO_MILLIS + " WHERE _id > ? AND _id <= ? AND timestamp_millis = 0",
+							new Object[] { lastId, chunkEnd });
+					db.setTransactionSuccessful();
+				}
+				finally
+				{
+					db.endTransaction();
+				}
+				lastId = chunkEnd;
+			}
 		}
 	}
 	
@@ -191,6 +655,25 @@ public class NotifryDatabaseAdapter extends ContentProvider
 			// Get a single account.
 			case MESSAGE_ID:
 				return "vnd.android.cursor.item/vnd.notifry.messages";				
+			// Messages with their sources.
+			case MESSAGES_WITH_SOURCES:
+				return "vnd.android.cursor.dir/vnd.notifry.messages_with_sources";
+			case MESSAGE_WITH_SOURCE_ID:
+				return "vnd.android.cursor.item/vnd.notifry.messages_with_sources";
+			// Unread counts per source.
+			case UNREAD_COUNTS:
+				return "vnd.android.cursor.dir/vnd.notifry.unread_counts";
+			// Message counts per source.
+			case MESSAGE_COUNTS:
+				return "vnd.android.cursor.dir/vnd.notifry.message_counts";
+			// Message bodies.
+			case MESSAGE_BODIES:
+				return "vnd.android.cursor.dir/vnd.notifry.message_bodies";
+			// Pending backend operations.
+			case OUTBOX:
+				return "vnd.android.cursor.dir/vnd.notifry.outbox";
+			case OUTBOX_ID:
+				return "vnd.android.cursor.item/vnd.notifry.outbox";
 			default:
 				throw new IllegalArgumentException("Unsupported URI: " + uri);
 		}
@@ -200,11 +683,106 @@ public class NotifryDatabaseAdapter extends ContentProvider
 	public boolean onCreate()
 	{
 		Context context = getContext();
-		DatabaseHelper dbHelper = new DatabaseHelper(context);
-		db = dbHelper.getWritableDatabase();
+		db = NotifryDatabaseAdapter.getDatabase(context);
 		return (db == null) ? false : true;
 	}
+
+	/**
+	 * Get the shared database, opening it if required.
+	 * @param context
+	 * @return
+	 */
+	private static synchronized SQLiteDatabase getDatabase( Context context )
+	{
+		if( databaseHelper == null )
+		{
+			databaseHelper = new DatabaseHelper(context.getApplicationContext());
+			notifier = new NotifryChangeNotifier(context.getApplicationContext());
+		}
+		return databaseHelper.getWritableDatabase();
+	}
 	
+	/**
+	 * Rebuild the database file to return the space freed by deleted rows.
+	 * This can't run inside a transaction, so it goes straight to the database
+	 * rather than through the content resolver.
+	 * @param context
+	 * @return True if the database was vacuumed.
+	 */
+	public static boolean vacuum( Context context )
+	{
+		try
+		{
+			NotifryDatabaseAdapter.getDatabase(context).execSQL("VACUUM");
+			return true;
+		}
+		catch( SQLException e )
+		{
+			Log.e(TAG, "Unable to vacuum the database: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Check that the unread counts match the messages, and rebuild them if
+	 * they don't. This scans the messages, so it shouldn't be called from the
+	 * UI thread.
+	 * @param context
+	 */
+	public static void checkUnreadCounts( Context context )
+	{
+		DatabaseHelper.checkUnreadCounts(NotifryDatabaseAdapter.getDatabase(context));
+	}
+
+	/**
+	 * Rebuild the full text search index from the messages table, in case
+	 * it has got out of step.
+	 * @param context
+	 */
+	public static void rebuildSearchIndex( Context context )
+	{
+		SQLiteDatabase db = NotifryDatabaseAdapter.getDatabase(context);
+		db.beginTransaction();
+		try
+		{
+			db.execSQL("DELETE FROM messages_fts");
+			Cursor cursor = db.rawQuery("SELECT messages._id, messages.title, message_bodies.compressed, message_bodies.body " +
+					"FROM messages LEFT JOIN message_bodies ON message_bodies.message_id = messages._id", null);
+			try
+			{
+				while( cursor.moveToNext() )
+				{
+					String body = "";
+					if( !cursor.isNull(3) )
+					{
+						body = MessageBody.decode(cursor.getInt(2) != 0, cursor.getBlob(3));
+					}
+					db.execSQL("INSERT INTO messages_fts (docid, title, message) VALUES (?, ?, ?)",
+							new Object[] { cursor.getLong(0), cursor.getString(1), body == null ? "" : body });
+				}
+			}
+			finally
+			{
+				cursor.close();
+			}
+			db.setTransactionSuccessful();
+		}
+		finally
+		{
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Add every message to the (empty) search index, from the body column of
+	 * the messages table. Only for upgrades from before the bodies moved.
+	 * @param db
+	 */
+	private static void fillSearchIndex( SQLiteDatabase db )
+	{
+		db.execSQL("INSERT INTO messages_fts (docid, title, message) SELECT _id, title, message FROM messages");
+	}
+
 	private String getTableFor( Uri uri )
 	{
 		switch( uriMatcher.match(uri) )
@@ -217,7 +795,18 @@ public class NotifryDatabaseAdapter extends ContentProvider
 				return DATABASE_TABLE_SOURCES;
 			case MESSAGES:
 			case MESSAGE_ID:
+			case MESSAGE_COUNTS:
 				return DATABASE_TABLE_MESSAGES;
+			case MESSAGE_BODIES:
+				return DATABASE_TABLE_MESSAGE_BODIES;
+			case MESSAGES_WITH_SOURCES:
+			case MESSAGE_WITH_SOURCE_ID:
+				return DATABASE_VIEW_MESSAGES_WITH_SOURCES;
+			case UNREAD_COUNTS:
+				return DATABASE_TABLE_UNREAD_COUNTS;
+			case OUTBOX:
+			case OUTBOX_ID:
+				return DATABASE_TABLE_OUTBOX;
 			default:
 				throw new IllegalArgumentException("Unsupported URI: " + uri);
 		}
@@ -235,12 +824,40 @@ public class NotifryDatabaseAdapter extends ContentProvider
 				return CONTENT_URI_SOURCES;
 			case MESSAGES:
 			case MESSAGE_ID:
+			case MESSAGES_WITH_SOURCES:
+			case MESSAGE_WITH_SOURCE_ID:
+			case UNREAD_COUNTS:
+			case MESSAGE_COUNTS:
+			case MESSAGE_BODIES:
 				return CONTENT_URI_MESSAGES;
+			case OUTBOX:
+			case OUTBOX_ID:
+				return CONTENT_URI_OUTBOX;
 			default:
 				throw new IllegalArgumentException("Unsupported URI: " + uri);
 		}
 	}	
 	
+	/**
+	 * Get the table to write to for the given URI. Views are read only.
+	 * @param uri
+	 * @return
+	 */
+	private String getWritableTableFor( Uri uri )
+	{
+		switch( uriMatcher.match(uri) )
+		{
+			case MESSAGES_WITH_SOURCES:
+			case MESSAGE_WITH_SOURCE_ID:
+			case UNREAD_COUNTS:
+			case MESSAGE_COUNTS:
+			case MESSAGE_BODIES:
+				throw new IllegalArgumentException("Read only URI: " + uri);
+			default:
+				return this.getTableFor(uri);
+		}
+	}
+
 	@Override
 	public Cursor query( Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder )
 	{
@@ -255,56 +872,186 @@ public class NotifryDatabaseAdapter extends ContentProvider
 			case ACCOUNT_ID:
 			case SOURCE_ID:
 			case MESSAGE_ID:
+			case MESSAGE_WITH_SOURCE_ID:
+			case OUTBOX_ID:
 				sqlBuilder.appendWhere(KEY_ID + " = " + uri.getPathSegments().get(1));
 				break;
 		}
 
+		// The counts are aggregated per source.
+		String groupBy = null;
+		if( uriMatcher.match(uri) == MESSAGE_COUNTS )
+		{
+			groupBy = KEY_SOURCE_ID;
+		}
+
 		// Perform the query.
 		Cursor cursor = sqlBuilder.query(
 				this.db,
 				projection,
 				selection,
 				selectionArgs,
+				groupBy,
 				null,
-				null,
-				sortOrder);
+				sortOrder,
+				uri.getQueryParameter(QUERY_LIMIT));
 
-		// Tell the cursor to listen for changes.
-		cursor.setNotificationUri(getContext().getContentResolver(), uri);
+		// Tell the cursor to listen for changes. Views and derived tables change
+		// when the messages do.
+		switch( uriMatcher.match(uri) )
+		{
+			case MESSAGES_WITH_SOURCES:
+			case MESSAGE_WITH_SOURCE_ID:
+			case UNREAD_COUNTS:
+			case MESSAGE_COUNTS:
+			case MESSAGE_BODIES:
+				cursor.setNotificationUri(getContext().getContentResolver(), this.getContentUriFor(uri));
+				break;
+			default:
+				cursor.setNotificationUri(getContext().getContentResolver(), uri);
+		}
 		return cursor;
 	}
 	
 	@Override
 	public Uri insert( Uri uri, ContentValues values )
 	{
-		// Insert into the database...
-		long rowID = this.db.insert(this.getTableFor(uri), "", values);
+		String table = this.getWritableTableFor(uri);
+		long rowID;
+
+		this.db.beginTransaction();
+		try
+		{
+			// If this is a message that is already stored, don't insert it again,
+			// just return the existing row.
+			long existingID = this.findExistingMessage(table, values);
+			if( existingID > 0 )
+			{
+				this.db.setTransactionSuccessful();
+				return ContentUris.withAppendedId(this.getContentUriFor(uri), existingID);
+			}
+
+			// Insert into the database...
+			String body = this.takeBody(table, values);
+			rowID = this.db.insert(table, "", values);
+			if( rowID > 0 && body != null )
+			{
+				this.storeBody(rowID, body);
+			}
+			this.db.setTransactionSuccessful();
+		}
+		finally
+		{
+			this.db.endTransaction();
+		}
 
 		// And on success...
 		if( rowID > 0 )
 		{
 			// Create our return URI.
 			Uri _uri = ContentUris.withAppendedId(this.getContentUriFor(uri), rowID);
+			this.invalidateCache(_uri);
 			// And notify anyone watching that it's changed.
-			getContext().getContentResolver().notifyChange(this.getContentUriFor(_uri), null);
-			getContext().getContentResolver().notifyChange(_uri, null);
+			this.notifyChange(_uri);
 			return _uri;
 		}
 
 		throw new SQLException("Failed to insert row into " + uri);
 	}
+
+	/**
+	 * Find the ID of the stored message with the same source and server ID as
+	 * the given values.
+	 * @param table
+	 * @param values
+	 * @return The ID of the existing message, or 0 if there is none (or the
+	 * values are not a message).
+	 */
+	private long findExistingMessage( String table, ContentValues values )
+	{
+		if( !table.equals(DATABASE_TABLE_MESSAGES) || !values.containsKey(KEY_SOURCE_ID) || !values.containsKey(KEY_SERVER_ID) )
+		{
+			return 0;
+		}
+
+		return DatabaseUtils.longForQuery(this.db,
+				"SELECT IFNULL(MAX(" + KEY_ID + "), 0) FROM " + DATABASE_TABLE_MESSAGES + " WHERE " + KEY_SOURCE_ID + " = ? AND " + KEY_SERVER_ID + " = ?",
+				new String[] { values.getAsString(KEY_SOURCE_ID), values.getAsString(KEY_SERVER_ID) });
+	}
 	
+	/**
+	 * Take the body out of the values for a message, as it is stored in the
+	 * message bodies table.
+	 * @param table
+	 * @param values
+	 * @return The body, or NULL if these aren't message values with a body.
+	 */
+	private String takeBody( String table, ContentValues values )
+	{
+		if( !table.equals(DATABASE_TABLE_MESSAGES) || !values.containsKey(KEY_MESSAGE) )
+		{
+			return null;
+		}
+
+		String body = values.getAsString(KEY_MESSAGE);
+		values.put(KEY_MESSAGE, "");
+		return body == null ? "" : body;
+	}
+
+	/**
+	 * Store the body of a message, and index it for searching. This must be
+	 * called in the same transaction as the change to the message.
+	 * @param messageId
+	 * @param body
+	 */
+	private void storeBody( long messageId, String body )
+	{
+		this.db.replace(DATABASE_TABLE_MESSAGE_BODIES, null, MessageBody.encode(messageId, body));
+		this.db.execSQL("DELETE FROM messages_fts WHERE docid = ?", new Object[] { messageId });
+		this.db.execSQL("INSERT INTO messages_fts (docid, title, message) SELECT _id, title, ? FROM messages WHERE _id = ?", new Object[] { body, messageId });
+	}
+
 	@Override
 	public int update( Uri uri, ContentValues values, String selection, String[] selectionArgs )
 	{
 		int count = 0;
 		// Determine the table.
-		String table = this.getTableFor(uri);
-		// Perform the update.
-		count = this.db.update(table, values, selection, selectionArgs);
+		String table = this.getWritableTableFor(uri);
+		String body = this.takeBody(table, values);
+		if( body == null )
+		{
+			// Perform the update.
+			count = this.db.update(table, values, selection, selectionArgs);
+		}
+		else
+		{
+			// Update the message and its body together.
+			this.db.beginTransaction();
+			try
+			{
+				ArrayList<Long> ids = new ArrayList<Long>();
+				Cursor cursor = this.db.query(table, new String[] { KEY_ID }, selection, selectionArgs, null, null, null);
+				while( cursor.moveToNext() )
+				{
+					ids.add(cursor.getLong(0));
+				}
+				cursor.close();
+
+				count = this.db.update(table, values, selection, selectionArgs);
+				for( Long id: ids )
+				{
+					this.storeBody(id, body);
+				}
+				this.db.setTransactionSuccessful();
+			}
+			finally
+			{
+				this.db.endTransaction();
+			}
+		}
+		this.invalidateCache(uri);
 		// Notify anyone that we've changed things.
-		getContext().getContentResolver().notifyChange(this.getContentUriFor(uri), null);
-		getContext().getContentResolver().notifyChange(uri, null);
+		this.notifyChange(uri);
 		// And return the number of changed rows.
 		return count;
 	}	
@@ -314,15 +1061,137 @@ public class NotifryDatabaseAdapter extends ContentProvider
 	{
 		int count = 0;
 		// Determine the table.
-		String table = this.getTableFor(uri);
+		String table = this.getWritableTableFor(uri);
 		// Do the deletion.
 		count = this.db.delete(table, selection, selectionArgs);
+		this.invalidateCache(uri);
 		
 		// And notify anyone that we've changed things.
-		getContext().getContentResolver().notifyChange(this.getContentUriFor(uri), null);
-		getContext().getContentResolver().notifyChange(uri, null);
+		this.notifyChange(uri);
 		
 		// Return the number of deleted entries.
 		return count;
 	}
+
+	/**
+	 * Insert a set of rows in a single transaction, sending the change
+	 * notification once at the end.
+	 */
+	@Override
+	public int bulkInsert( Uri uri, ContentValues[] values )
+	{
+		boolean outermost = this.beginBatch();
+		try
+		{
+			for( ContentValues row: values )
+			{
+				this.insert(uri, row);
+			}
+			this.db.setTransactionSuccessful();
+		}
+		finally
+		{
+			this.endBatch(outermost);
+		}
+
+		return values.length;
+	}
+
+	/**
+	 * Apply a set of operations in a single transaction, sending one change
+	 * notification per content URI at the end.
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch( ArrayList<ContentProviderOperation> operations ) throws OperationApplicationException
+	{
+		boolean outermost = this.beginBatch();
+		try
+		{
+			ContentProviderResult[] results = super.applyBatch(operations);
+			this.db.setTransactionSuccessful();
+			return results;
+		}
+		finally
+		{
+			this.endBatch(outermost);
+		}
+	}
+
+	/**
+	 * Start a transaction, and start collecting change notifications if this is
+	 * the outermost batch on this thread.
+	 * @return True if this call started the batch.
+	 */
+	private boolean beginBatch()
+	{
+		this.db.beginTransaction();
+		if( batchChanges.get() == null )
+		{
+			batchChanges.set(new LinkedHashSet<Uri>());
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Finish the transaction, and if this was the outermost batch, send the
+	 * change notifications that were collected during it.
+	 * @param outermost
+	 */
+	private void endBatch( boolean outermost )
+	{
+		try
+		{
+			this.db.endTransaction();
+		}
+		finally
+		{
+			if( outermost )
+			{
+				LinkedHashSet<Uri> changed = batchChanges.get();
+				batchChanges.set(null);
+				notifier.changedNow(changed);
+			}
+		}
+	}
+
+	/**
+	 * Tell the in memory cache for the table, if any, that the given URI has
+	 * changed - just the one object for an item URI, otherwise the whole table.
+	 * @param uri
+	 */
+	private void invalidateCache( Uri uri )
+	{
+		switch( uriMatcher.match(uri) )
+		{
+			case ACCOUNT_ID:
+			case SOURCE_ID:
+			case MESSAGE_ID:
+			case OUTBOX_ID:
+				ObjectCache.invalidate(this.getContentUriFor(uri), ContentUris.parseId(uri));
+				break;
+			default:
+				ObjectCache.invalidateAll(this.getContentUriFor(uri));
+		}
+	}
+
+	/**
+	 * Let anyone watching know that the given URI has changed. Only the content
+	 * URI is notified, which also reaches observers of the individual items.
+	 * During a batch, this is deferred until the batch is complete, otherwise
+	 * it is debounced with any other changes that follow shortly after.
+	 * @param uri
+	 */
+	private void notifyChange( Uri uri )
+	{
+		LinkedHashSet<Uri> changed = batchChanges.get();
+		if( changed != null )
+		{
+			changed.add(this.getContentUriFor(uri));
+		}
+		else
+		{
+			notifier.changed(this.getContentUriFor(uri));
+		}
+	}
 }
\ No newline at end of file
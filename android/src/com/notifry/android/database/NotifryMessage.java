@@ -18,13 +18,12 @@
 
 package com.notifry.android.database;
 
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 import com.notifry.android.UpdaterService;
 
@@ -32,8 +31,10 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 
@@ -46,9 +47,12 @@ public class NotifryMessage extends ORM<NotifryMessage>
 	private NotifrySource source;
 	private String title;
 	private String timestamp;
+	private Long timestampMillis;
 	private String message;
 	private String url;
 	private Boolean seen;
+	// For loading the body of stored messages when it is first needed.
+	private Context bodyContext;
 
 	public Long getServerId()
 	{
@@ -88,27 +92,62 @@ public class NotifryMessage extends ORM<NotifryMessage>
 	public void setTimestamp( String timestamp )
 	{
 		this.timestamp = timestamp;
+		this.timestampMillis = null;
+	}
+
+	/**
+	 * Get the timestamp as milliseconds since the epoch (UTC).
+	 * This is derived from the ISO8601 timestamp if not already known.
+	 * @return
+	 */
+	public Long getTimestampMillis()
+	{
+		if( this.timestampMillis == null && this.timestamp != null )
+		{
+			try
+			{
+				this.timestampMillis = NotifryMessage.parseISO8601Millis(this.timestamp);
+			}
+			catch( ParseException e )
+			{
+				this.timestampMillis = 0L;
+			}
+		}
+		return this.timestampMillis;
+	}
+
+	public void setTimestampMillis( Long timestampMillis )
+	{
+		this.timestampMillis = timestampMillis;
 	}
 
 	public static Date parseISO8601String( String isoString ) throws ParseException
 	{
-		SimpleDateFormat ISO8601DATEFORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
-		ISO8601DATEFORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
-		return ISO8601DATEFORMAT.parse(isoString);
+		return new Date(TimestampCodec.parseMillis(isoString));
+	}
+
+	/**
+	 * Parse an ISO8601 (UTC) string into milliseconds since the epoch, keeping
+	 * any fractional seconds that the server sent.
+	 * @param isoString
+	 * @return
+	 * @throws ParseException
+	 */
+	public static long parseISO8601Millis( String isoString ) throws ParseException
+	{
+		return TimestampCodec.parseMillis(isoString);
 	}
 
 	public static String formatUTCAsLocal( Date date )
 	{
-		DateFormat formatter = DateFormat.getDateTimeInstance();
-		formatter.setTimeZone(TimeZone.getDefault());
-		return formatter.format(date);		
+		return TimestampCodec.formatLocal(date.getTime());
 	}
 	
 	public String getDisplayTimestamp()
 	{
 		try
 		{	
-			return NotifryMessage.formatUTCAsLocal(NotifryMessage.parseISO8601String(this.timestamp));
+			return TimestampCodec.formatLocal(TimestampCodec.parseMillis(this.timestamp));
 		}
 		catch( ParseException e )
 		{
@@ -116,8 +155,18 @@ public class NotifryMessage extends ORM<NotifryMessage>
 		}
 	}
 
+	/**
+	 * Get the message body. For stored messages, this is loaded from the
+	 * database (and decompressed) the first time it is asked for.
+	 * @return
+	 */
 	public String getMessage()
 	{
+		if( this.message == null && this.bodyContext != null && this.getId() != null )
+		{
+			this.message = NotifryMessage.loadBody(this.bodyContext, this.getId());
+			this.bodyContext = null;
+		}
 		return message;
 	}
 
@@ -225,44 +274,297 @@ public class NotifryMessage extends ORM<NotifryMessage>
 			query = NotifryDatabaseAdapter.KEY_SOURCE_ID + "=" + source.getId();
 		}
 		
-		return this.genericList(context, query, null, NotifryDatabaseAdapter.KEY_TIMESTAMP + " DESC");
+		return this.genericList(context, query, null, NotifryDatabaseAdapter.KEY_TIMESTAMP_MILLIS + " DESC");
 	}
 	
-	public Cursor cursorList( Context context, NotifrySource source )
+	/**
+	 * List the messages with the given IDs, oldest first, in one query.
+	 * @param context
+	 * @param ids
+	 * @return
+	 */
+	public ArrayList<NotifryMessage> listByIds( Context context, long[] ids )
 	{
-		String query = "";
-		if( source != null )
+		StringBuilder query = new StringBuilder();
+		query.append(NotifryDatabaseAdapter.KEY_ID).append(" IN (");
+		for( int i = 0; i < ids.length; i++ )
 		{
-			query = NotifryDatabaseAdapter.KEY_SOURCE_ID + "=" + source.getId();
-		}		
+			if( i > 0 )
+			{
+				query.append(',');
+			}
+			query.append(ids[i]);
+		}
+		query.append(')');
 		
-		return context.getContentResolver().query(
+		return this.genericList(context, query.toString(), null, NotifryDatabaseAdapter.KEY_ID + " ASC");
+	}
+	
+	/**
+	 * Filter out messages that are already stored, or that appear more than once
+	 * in the list, by source and server ID. This is one query for the whole list.
+	 * @param context
+	 * @param messages
+	 * @return The messages that are new, in the original order.
+	 */
+	public ArrayList<NotifryMessage> withoutDuplicates( Context context, List<NotifryMessage> messages )
+	{
+		ArrayList<NotifryMessage> result = new ArrayList<NotifryMessage>();
+		if( messages.size() == 0 )
+		{
+			return result;
+		}
+		
+		HashSet<Long> sourceIds = new HashSet<Long>();
+		HashSet<Long> serverIds = new HashSet<Long>();
+		for( NotifryMessage message: messages )
+		{
+			sourceIds.add(message.getSource().getId());
+			serverIds.add(message.getServerId());
+		}
+		
+		// Find the ones that are already stored.
+		HashSet<String> seen = new HashSet<String>();
+		Cursor cursor = context.getContentResolver().query(
 				this.getContentUri(),
-				new String[] { NotifryDatabaseAdapter.KEY_ID, NotifryDatabaseAdapter.KEY_TITLE, NotifryDatabaseAdapter.KEY_TIMESTAMP, NotifryDatabaseAdapter.KEY_SEEN },
-				query,
+				new String[] { NotifryDatabaseAdapter.KEY_SOURCE_ID, NotifryDatabaseAdapter.KEY_SERVER_ID },
+				NotifryDatabaseAdapter.KEY_SOURCE_ID + " IN (" + TextUtils.join(",", sourceIds) + ") AND " +
+				NotifryDatabaseAdapter.KEY_SERVER_ID + " IN (" + TextUtils.join(",", serverIds) + ")",
 				null,
-				NotifryDatabaseAdapter.KEY_TIMESTAMP + " DESC");
+				null);
+		if( cursor.moveToFirst() )
+		{
+			do
+			{
+				seen.add(cursor.getLong(0) + ":" + cursor.getLong(1));
+			}
+			while( cursor.moveToNext() );
+		}
+		cursor.close();
+		
+		// And keep the first copy of each of the rest.
+		for( NotifryMessage message: messages )
+		{
+			if( seen.add(message.getSource().getId() + ":" + message.getServerId()) )
+			{
+				result.add(message);
+			}
+		}
+		
+		return result;
 	}
+	
+	/**
+	 * Get a page of messages for the message list, newest first. Pages are
+	 * keyed on the timestamp and ID of the last message of the previous page,
+	 * so fetching a page is an index seek however far down the list it is.
+	 * @param context
+	 * @param source The source to list, or NULL for all sources.
+	 * @param afterMillis The timestamp of the last message of the previous page, or NULL for the first page.
+	 * @param afterId The ID of the last message of the previous page.
+	 * @param limit The number of messages in the page.
+	 * @return
+	 */
+	public Cursor cursorPage( Context context, NotifrySource source, Long afterMillis, long afterId, int limit )
+	{
+		ArrayList<String> conditions = new ArrayList<String>();
+		if( source != null )
+		{
+			conditions.add(NotifryDatabaseAdapter.KEY_SOURCE_ID + "=" + source.getId());
+		}
+		if( afterMillis != null )
+		{
+			conditions.add("(" + NotifryDatabaseAdapter.KEY_TIMESTAMP_MILLIS + " < " + afterMillis + " OR (" +
+					NotifryDatabaseAdapter.KEY_TIMESTAMP_MILLIS + " = " + afterMillis + " AND " +
+					NotifryDatabaseAdapter.KEY_ID + " < " + afterId + "))");
+		}
 
+		Uri uri = this.getContentUri().buildUpon().appendQueryParameter(NotifryDatabaseAdapter.QUERY_LIMIT, Integer.toString(limit)).build();
+		return context.getContentResolver().query(
+				uri,
+				new String[] { NotifryDatabaseAdapter.KEY_ID, NotifryDatabaseAdapter.KEY_TITLE, NotifryDatabaseAdapter.KEY_TIMESTAMP_MILLIS, NotifryDatabaseAdapter.KEY_SEEN },
+				TextUtils.join(" AND ", conditions),
+				null,
+				NotifryDatabaseAdapter.KEY_TIMESTAMP_MILLIS + " DESC, " + NotifryDatabaseAdapter.KEY_ID + " DESC");
+	}
+
+	/**
+	 * Count the unseen messages for a source, or for all sources if the source
+	 * is NULL. This reads the maintained unread counts rather than counting
+	 * the messages.
+	 * @param context
+	 * @param source
+	 * @return
+	 */
 	public int countUnread( Context context, NotifrySource source )
 	{
-		String query = NotifryDatabaseAdapter.KEY_SEEN + " = 0 ";
+		String query = null;
 		if( source != null )
 		{
-			query += " AND " + NotifryDatabaseAdapter.KEY_SOURCE_ID + "=" + source.getId();
+			query = NotifryDatabaseAdapter.KEY_SOURCE_ID + "=" + source.getId();
 		}
-		return this.genericCount(context, query, null);
+
+		Cursor cursor = context.getContentResolver().query(
+				NotifryDatabaseAdapter.CONTENT_URI_UNREAD_COUNTS,
+				new String[] { "IFNULL(SUM(" + NotifryDatabaseAdapter.KEY_UNREAD + "), 0)" },
+				query,
+				null,
+				null);
+		int count = 0;
+		if( cursor.moveToFirst() )
+		{
+			count = cursor.getInt(0);
+		}
+		cursor.close();
+		return count;
 	}
 	
+	/**
+	 * The number of unseen and total messages for a source.
+	 */
+	public static class Counts
+	{
+		public static final Counts NONE = new Counts(0, 0);
+
+		private final int unread;
+		private final int total;
+
+		public Counts( int unread, int total )
+		{
+			this.unread = unread;
+			this.total = total;
+		}
+
+		public int getUnread()
+		{
+			return unread;
+		}
+
+		public int getTotal()
+		{
+			return total;
+		}
+	}
+
+	/**
+	 * Count the unseen and total messages of every source of an account, in
+	 * one pass over the messages.
+	 * @param context
+	 * @param accountName The account, or NULL for all accounts.
+	 * @return The counts by local source ID. Sources without messages are left out.
+	 */
+	public HashMap<Long, Counts> countBySource( Context context, String accountName )
+	{
+		String query = null;
+		String[] queryParams = null;
+		if( accountName != null )
+		{
+			query = NotifryDatabaseAdapter.KEY_SOURCE_ID + " IN (SELECT " + NotifryDatabaseAdapter.KEY_ID + " FROM sources WHERE " + NotifryDatabaseAdapter.KEY_ACCOUNT_NAME + " = ?)";
+			queryParams = new String[] { accountName };
+		}
+
+		Cursor cursor = context.getContentResolver().query(
+				NotifryDatabaseAdapter.CONTENT_URI_MESSAGE_COUNTS,
+				new String[] {
+					NotifryDatabaseAdapter.KEY_SOURCE_ID,
+					"SUM(" + NotifryDatabaseAdapter.KEY_SEEN + " = 0) AS " + NotifryDatabaseAdapter.KEY_UNREAD,
+					"COUNT(*) AS " + NotifryDatabaseAdapter.KEY_TOTAL },
+				query,
+				queryParams,
+				null);
+
+		HashMap<Long, Counts> counts = new HashMap<Long, Counts>();
+		while( cursor.moveToNext() )
+		{
+			counts.put(cursor.getLong(0), new Counts(cursor.getInt(1), cursor.getInt(2)));
+		}
+		cursor.close();
+		return counts;
+	}
+
+	/**
+	 * Search the message titles and bodies using the full text index. Each
+	 * word is matched as a prefix, and all words must match. Messages whose
+	 * title matches rank first, then newest first.
+	 * @param context
+	 * @param query The words to search for.
+	 * @param source The source to search, or NULL for all sources.
+	 * @param offset The number of results to skip, for paging.
+	 * @param limit The maximum number of results.
+	 * @return
+	 */
+	public ArrayList<NotifryMessage> search( Context context, String query, NotifrySource source, int offset, int limit )
+	{
+		String match = NotifryMessage.toMatchQuery(query, null);
+		if( match == null )
+		{
+			return new ArrayList<NotifryMessage>();
+		}
+
+		String selection = NotifryDatabaseAdapter.KEY_ID + " IN (SELECT docid FROM messages_fts WHERE messages_fts MATCH ?)";
+		if( source != null )
+		{
+			selection += " AND " + NotifryDatabaseAdapter.KEY_SOURCE_ID + "=" + source.getId();
+		}
+
+		// The title query only ever contains letters, digits and the operators
+		// we added, so it can be inlined into the order clause.
+		String titleMatch = DatabaseUtils.sqlEscapeString(NotifryMessage.toMatchQuery(query, NotifryDatabaseAdapter.KEY_TITLE));
+		String sortOrder = "(" + NotifryDatabaseAdapter.KEY_ID + " IN (SELECT docid FROM messages_fts WHERE messages_fts MATCH " + titleMatch + ")) DESC, " +
+				NotifryDatabaseAdapter.KEY_TIMESTAMP_MILLIS + " DESC, " + NotifryDatabaseAdapter.KEY_ID + " DESC";
+
+		Uri uri = this.getQueryUri().buildUpon().appendQueryParameter(NotifryDatabaseAdapter.QUERY_LIMIT, offset + "," + limit).build();
+		return this.genericList(context, uri, selection, new String[] { match }, sortOrder);
+	}
+
+	/**
+	 * Convert what the user typed into a full text query, with each word as a
+	 * prefix match. Anything other than letters and digits separates words, so
+	 * the user can't accidentally use the query syntax.
+	 * @param query
+	 * @param column The column to restrict the match to, or NULL for all columns.
+	 * @return The query, or NULL if there are no words to search for.
+	 */
+	private static String toMatchQuery( String query, String column )
+	{
+		StringBuilder match = new StringBuilder();
+		StringBuilder word = new StringBuilder();
+		int length = query.length();
+		for( int i = 0; i <= length; i++ )
+		{
+			char c = i < length ? query.charAt(i) : ' ';
+			if( Character.isLetterOrDigit(c) )
+			{
+				word.append(Character.toLowerCase(c));
+			}
+			else if( word.length() > 0 )
+			{
+				if( match.length() > 0 )
+				{
+					match.append(' ');
+				}
+				if( column != null )
+				{
+					match.append(column).append(':');
+				}
+				match.append(word).append('*');
+				word.setLength(0);
+			}
+		}
+
+		return match.length() > 0 ? match.toString() : null;
+	}
+
 	public void markAllAsSeen( Context context, NotifrySource source )
 	{
 		ContentValues values = new ContentValues();
 		values.put(NotifryDatabaseAdapter.KEY_SEEN, 1);
 		
-		String query = null;
+		// Only touch the unseen messages - there is no need to rewrite the rest.
+		String query = NotifryDatabaseAdapter.KEY_SEEN + " = 0";
 		if( source != null )
 		{
-			query = NotifryDatabaseAdapter.KEY_SOURCE_ID + " = " + source.getId();
+			query = NotifryDatabaseAdapter.KEY_SOURCE_ID + " = " + source.getId() + " AND " + query;
 		}
 		
 		context.getContentResolver().update(this.getContentUri(), values, query, null);
@@ -291,17 +593,6 @@ public class NotifryMessage extends ORM<NotifryMessage>
 		
 		this.genericDelete(context, query, null);
 	}
-	
-	public void deleteOlderThan( Context context, Date date )
-	{
-		// Parse it, and display in LOCAL timezone.
-		SimpleDateFormat ISO8601DATEFORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSSSS", Locale.US);
-		ISO8601DATEFORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
-		String formattedDate = ISO8601DATEFORMAT.format(date);
-		
-		// So, everything older than formattedDate should be removed.
-		this.genericDelete(context, NotifryDatabaseAdapter.KEY_TIMESTAMP + " < ?", new String[] { formattedDate });
-	}	
 
 	@Override
 	public Uri getContentUri()
@@ -316,34 +607,110 @@ public class NotifryMessage extends ORM<NotifryMessage>
 		values.put(NotifryDatabaseAdapter.KEY_TITLE, this.getTitle());
 		values.put(NotifryDatabaseAdapter.KEY_SOURCE_ID, this.getSource().getId());
 		values.put(NotifryDatabaseAdapter.KEY_SERVER_ID, this.getServerId());
-		values.put(NotifryDatabaseAdapter.KEY_MESSAGE, this.getMessage());
+		// Only write the body if it's been loaded (or set) - it doesn't change.
+		if( this.message != null )
+		{
+			values.put(NotifryDatabaseAdapter.KEY_MESSAGE, this.message);
+		}
 		values.put(NotifryDatabaseAdapter.KEY_URL, this.getUrl());
 		values.put(NotifryDatabaseAdapter.KEY_TIMESTAMP, this.getTimestamp());
+		values.put(NotifryDatabaseAdapter.KEY_TIMESTAMP_MILLIS, this.getTimestampMillis());
 		values.put(NotifryDatabaseAdapter.KEY_SEEN, this.getSeen() ? 1 : 0);
 		
 		return values;
 	}
 
 	@Override
-	protected NotifryMessage inflate( Context context, Cursor cursor )
+	protected NotifryMessage inflate( Context context, InflationContext row )
 	{
 		NotifryMessage message = new NotifryMessage();
-		message.setId(cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_ID)));
-		message.setTitle(cursor.getString(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_TITLE)));
-		message.setMessage(cursor.getString(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_MESSAGE)));
-		message.setUrl(cursor.getString(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_URL)));
-		message.setSource(NotifrySource.FACTORY.get(context, cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_SOURCE_ID))));
-		message.setServerId(cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_SERVER_ID)));
-		message.setSeen(cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_SEEN)) == 0 ? false : true);
-		message.setTimestamp(cursor.getString(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_TIMESTAMP)));
+		message.setId(row.getLong(NotifryDatabaseAdapter.KEY_ID));
+		message.setTitle(row.getString(NotifryDatabaseAdapter.KEY_TITLE));
+		message.bodyContext = context.getApplicationContext();
+		message.setUrl(row.getString(NotifryDatabaseAdapter.KEY_URL));
+		message.setSource(this.inflateSource(context, row, row.getLong(NotifryDatabaseAdapter.KEY_SOURCE_ID)));
+		message.setServerId(row.getLong(NotifryDatabaseAdapter.KEY_SERVER_ID));
+		message.setSeen(row.getBoolean(NotifryDatabaseAdapter.KEY_SEEN));
+		message.setTimestamp(row.getString(NotifryDatabaseAdapter.KEY_TIMESTAMP));
+		message.setTimestampMillis(row.getLong(NotifryDatabaseAdapter.KEY_TIMESTAMP_MILLIS));
 
 		return message;
 	}
 
+	/**
+	 * Load the body of a stored message.
+	 * @param context
+	 * @param messageId
+	 * @return The body, or an empty string if it can't be found.
+	 */
+	private static String loadBody( Context context, long messageId )
+	{
+		Cursor cursor = context.getContentResolver().query(
+				NotifryDatabaseAdapter.CONTENT_URI_MESSAGE_BODIES,
+				NotifryDatabaseAdapter.MESSAGE_BODY_PROJECTION,
+				NotifryDatabaseAdapter.KEY_MESSAGE_ID + "=" + messageId,
+				null,
+				null);
+		String body = null;
+		if( cursor.moveToFirst() )
+		{
+			body = MessageBody.decode(cursor.getInt(0) != 0, cursor.getBlob(1));
+		}
+		cursor.close();
+
+		if( body == null )
+		{
+			Log.w(TAG, "Unable to load the body of message " + messageId);
+			return "";
+		}
+		return body;
+	}
+
+	/**
+	 * Get the source for a message row. Each source is inflated once per result
+	 * set - from the joined columns if the row has them, otherwise by querying
+	 * for it.
+	 * @param context
+	 * @param row
+	 * @param sourceId
+	 * @return
+	 */
+	private NotifrySource inflateSource( Context context, InflationContext row, Long sourceId )
+	{
+		if( row.hasRelated(NotifrySource.class, sourceId) )
+		{
+			return row.getRelated(NotifrySource.class, sourceId);
+		}
+
+		NotifrySource source = null;
+		InflationContext sourceRow = row.forPrefix(NotifryDatabaseAdapter.SOURCE_COLUMN_PREFIX);
+		if( sourceRow.hasColumn(NotifryDatabaseAdapter.KEY_ID) )
+		{
+			// Joined query. The source is NULL if it no longer exists.
+			if( !sourceRow.isNull(NotifryDatabaseAdapter.KEY_ID) )
+			{
+				source = NotifrySource.FACTORY.inflate(context, sourceRow);
+			}
+		}
+		else
+		{
+			source = NotifrySource.FACTORY.get(context, sourceId);
+		}
+
+		row.putRelated(NotifrySource.class, sourceId, source);
+		return source;
+	}
+
+	@Override
+	public Uri getQueryUri()
+	{
+		return NotifryDatabaseAdapter.CONTENT_URI_MESSAGES_WITH_SOURCES;
+	}
+
 	@Override
 	protected String[] getProjection()
 	{
-		return NotifryDatabaseAdapter.MESSAGE_PROJECTION;
+		return NotifryDatabaseAdapter.MESSAGE_WITH_SOURCE_PROJECTION;
 	}
 	
 	public class UnsourceableMessage extends Exception
@@ -0,0 +1,548 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.notifry.android.database;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Random;
+
+import org.apache.http.NameValuePair;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.notifry.android.remote.BackendRequest;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.text.TextUtils;
+
+/**
+ * A backend operation that is waiting to be sent, or to be retried after it
+ * failed. Entries are keyed, so queueing a second operation on the same
+ * thing replaces the first rather than sending both.
+ */
+public class NotifryOutboxEntry extends ORM<NotifryOutboxEntry>
+{
+	public static final NotifryOutboxEntry FACTORY = new NotifryOutboxEntry();
+
+	public static final String OPERATION_REGISTER = "register";
+	public static final String OPERATION_DEREGISTER = "deregister";
+	public static final String OPERATION_SOURCE_GET = "source_get";
+	public static final String OPERATION_SOURCE_UPDATE = "source_update";
+
+	/**
+	 * Give up on an operation after this many failed attempts.
+	 */
+	public static final int MAX_ATTEMPTS = 15;
+
+	/**
+	 * The retry delay starts at the base and doubles each attempt, up to the cap.
+	 */
+	private static final long BACKOFF_BASE = 30 * 1000;
+	private static final long BACKOFF_CAP = 6 * 60 * 60 * 1000;
+
+	/**
+	 * Once sent, an entry isn't sent again for this long, unless it fails.
+	 * If the process dies while the request is out, it's retried after this.
+	 */
+	private static final long SEND_LEASE = 2 * 60 * 1000;
+
+	/**
+	 * Source fetches are held for this long so that a burst of changes
+	 * is fetched in one request.
+	 */
+	private static final long COALESCE_WINDOW = 10 * 1000;
+
+	private static final Random random = new Random();
+
+	private String operation = null;
+	private String dedupeKey = null;
+	private String accountName = null;
+	private String uri = null;
+	private String params = null;
+	private int attempts = 0;
+	private long nextAttempt = 0;
+	private String lastError = null;
+	private int revision = 0;
+	private boolean inFlight = false;
+
+	public String getOperation()
+	{
+		return operation;
+	}
+
+	public void setOperation( String operation )
+	{
+		this.operation = operation;
+	}
+
+	public String getDedupeKey()
+	{
+		return dedupeKey;
+	}
+
+	public void setDedupeKey( String dedupeKey )
+	{
+		this.dedupeKey = dedupeKey;
+	}
+
+	public String getAccountName()
+	{
+		return accountName;
+	}
+
+	public void setAccountName( String accountName )
+	{
+		this.accountName = accountName;
+	}
+
+	public String getUri()
+	{
+		return uri;
+	}
+
+	public void setUri( String uri )
+	{
+		this.uri = uri;
+	}
+
+	/**
+	 * Get the request parameters, as a JSON object.
+	 * @return
+	 */
+	public String getParams()
+	{
+		return params;
+	}
+
+	public void setParams( String params )
+	{
+		this.params = params;
+	}
+
+	public int getAttempts()
+	{
+		return attempts;
+	}
+
+	public void setAttempts( int attempts )
+	{
+		this.attempts = attempts;
+	}
+
+	public long getNextAttempt()
+	{
+		return nextAttempt;
+	}
+
+	public void setNextAttempt( long nextAttempt )
+	{
+		this.nextAttempt = nextAttempt;
+	}
+
+	public String getLastError()
+	{
+		return lastError;
+	}
+
+	public void setLastError( String lastError )
+	{
+		this.lastError = lastError;
+	}
+
+	/**
+	 * Get the revision of this entry, which changes every time it is queued,
+	 * so a response can be matched to the version of the entry it was for.
+	 * @return
+	 */
+	public int getRevision()
+	{
+		return revision;
+	}
+
+	public void setRevision( int revision )
+	{
+		this.revision = revision;
+	}
+
+	/**
+	 * Is a request for this entry out now?
+	 * @return
+	 */
+	public boolean getInFlight()
+	{
+		return inFlight;
+	}
+
+	public void setInFlight( boolean inFlight )
+	{
+		this.inFlight = inFlight;
+	}
+
+	/**
+	 * Get the key that operations on the same thing share. Registering and
+	 * deregistering an account share a key, so only the latest one is sent.
+	 * @param operation
+	 * @param subject The account name or server source ID the operation is for.
+	 * @return
+	 */
+	public static String keyFor( String operation, String subject )
+	{
+		if( operation.equals(OPERATION_REGISTER) || operation.equals(OPERATION_DEREGISTER) )
+		{
+			return "account:" + subject;
+		}
+		return operation + ":" + subject;
+	}
+
+	/**
+	 * Queue a request to be sent as soon as possible. If there is already an
+	 * operation queued with the same key, it is replaced. If that one has been
+	 * sent and not yet answered, the new one is sent when the answer arrives.
+	 * @param context
+	 * @param operation
+	 * @param dedupeKey
+	 * @param accountName
+	 * @param request
+	 * @return
+	 */
+	public synchronized NotifryOutboxEntry enqueue( Context context, String operation, String dedupeKey, String accountName, BackendRequest request )
+	{
+		NotifryOutboxEntry entry = this.getOne(context, NotifryDatabaseAdapter.KEY_DEDUPE_KEY + "= ?", new String[] { dedupeKey });
+		if( entry == null )
+		{
+			entry = new NotifryOutboxEntry();
+			entry.setDedupeKey(dedupeKey);
+		}
+
+		entry.setOperation(operation);
+		entry.setAccountName(accountName);
+		entry.setUri(request.getUri());
+		entry.setParams(NotifryOutboxEntry.flattenParams(request));
+		entry.setRevision(entry.getRevision() + 1);
+		entry.setAttempts(0);
+		entry.setLastError(null);
+		if( !entry.getInFlight() )
+		{
+			entry.setNextAttempt(System.currentTimeMillis());
+		}
+		entry.save(context);
+
+		return entry;
+	}
+
+	/**
+	 * Queue a fetch of a source from the server. All the sources waiting to
+	 * be fetched for an account share one entry, so each is only fetched
+	 * once, and they all go in a single request when the window closes.
+	 * If a fetch is already out, even of the same source, it's fetched again
+	 * once that one comes back, as the earlier fetch may have missed the change.
+	 * @param context
+	 * @param accountName
+	 * @param serverSourceId
+	 * @return
+	 */
+	public synchronized NotifryOutboxEntry enqueueSourceFetch( Context context, String accountName, Long serverSourceId )
+	{
+		String dedupeKey = NotifryOutboxEntry.keyFor(OPERATION_SOURCE_GET, accountName);
+		long due = System.currentTimeMillis() + COALESCE_WINDOW;
+		LinkedHashSet<String> ids = new LinkedHashSet<String>();
+
+		NotifryOutboxEntry entry = this.getOne(context, NotifryDatabaseAdapter.KEY_DEDUPE_KEY + "= ?", new String[] { dedupeKey });
+		if( entry == null )
+		{
+			entry = new NotifryOutboxEntry();
+			entry.setDedupeKey(dedupeKey);
+			entry.setOperation(OPERATION_SOURCE_GET);
+			entry.setAccountName(accountName);
+			entry.setUri("/sources/get");
+		}
+		else
+		{
+			// Join the fetch that's already waiting, without putting it off.
+			try
+			{
+				String existing = new JSONObject(entry.getParams()).optString("ids");
+				if( existing.length() > 0 )
+				{
+					for( String id: existing.split(",") )
+					{
+						ids.add(id);
+					}
+				}
+			}
+			catch( JSONException e )
+			{
+				// Unreadable - just fetch the new one.
+			}
+			if( entry.getInFlight() )
+			{
+				// A fetch is out - keep its lease. The response will find the
+				// revision has changed, and send this one straight after.
+				due = entry.getNextAttempt();
+			}
+			else
+			{
+				due = Math.min(due, entry.getNextAttempt());
+			}
+		}
+		ids.add(serverSourceId.toString());
+
+		JSONObject values = new JSONObject();
+		try
+		{
+			values.put("ids", TextUtils.join(",", ids));
+		}
+		catch( JSONException e )
+		{
+			// Can't happen - the name is not null.
+			throw new RuntimeException(e);
+		}
+
+		entry.setParams(values.toString());
+		entry.setRevision(entry.getRevision() + 1);
+		entry.setNextAttempt(due);
+		entry.save(context);
+
+		return entry;
+	}
+
+	/**
+	 * List the entries that are due to be sent.
+	 * @param context
+	 * @param now
+	 * @return
+	 */
+	public ArrayList<NotifryOutboxEntry> listDue( Context context, long now )
+	{
+		return this.genericList(context, NotifryDatabaseAdapter.KEY_NEXT_ATTEMPT + " <= " + now, null, NotifryDatabaseAdapter.KEY_NEXT_ATTEMPT + " ASC");
+	}
+
+	/**
+	 * Find when the next entry is due.
+	 * @param context
+	 * @return The time in milliseconds, or 0 if the outbox is empty.
+	 */
+	public long getNextAttemptTime( Context context )
+	{
+		Uri uri = this.getContentUri().buildUpon().appendQueryParameter(NotifryDatabaseAdapter.QUERY_LIMIT, "1").build();
+		Cursor cursor = context.getContentResolver().query(
+				uri,
+				new String[] { NotifryDatabaseAdapter.KEY_NEXT_ATTEMPT },
+				null,
+				null,
+				NotifryDatabaseAdapter.KEY_NEXT_ATTEMPT + " ASC");
+		long nextAttempt = 0;
+		if( cursor.moveToFirst() )
+		{
+			nextAttempt = cursor.getLong(0);
+		}
+		cursor.close();
+		return nextAttempt;
+	}
+
+	/**
+	 * Build the request to send for this entry.
+	 * @return
+	 * @throws JSONException
+	 */
+	public BackendRequest toRequest() throws JSONException
+	{
+		BackendRequest request = new BackendRequest(this.getUri());
+		JSONObject values = new JSONObject(this.getParams());
+		Iterator<?> keys = values.keys();
+		while( keys.hasNext() )
+		{
+			String name = (String) keys.next();
+			request.add(name, values.getString(name));
+		}
+		return request;
+	}
+
+	/**
+	 * Note that this entry has been sent, so it isn't sent again while the
+	 * request is outstanding.
+	 * @param context
+	 */
+	public void sent( Context context )
+	{
+		this.setInFlight(true);
+		this.setNextAttempt(System.currentTimeMillis() + SEND_LEASE);
+		this.save(context);
+	}
+
+	/**
+	 * Deal with the response to a request sent for an entry. If the entry was
+	 * queued again while the request was out, the response is for an old
+	 * version of it, so the entry is sent again rather than settled.
+	 * @param context
+	 * @param id The ID of the entry.
+	 * @param revision The revision of the entry that was sent.
+	 * @param succeeded
+	 * @param error The error, if the request failed.
+	 * @param retryable If the request failed, whether it's worth trying again.
+	 * @return False if the entry failed and has been given up on.
+	 */
+	public synchronized boolean settle( Context context, Long id, int revision, boolean succeeded, String error, boolean retryable )
+	{
+		NotifryOutboxEntry entry = this.get(context, id);
+		if( entry == null )
+		{
+			return true;
+		}
+
+		if( entry.getRevision() != revision )
+		{
+			entry.setInFlight(false);
+			entry.setNextAttempt(System.currentTimeMillis());
+			entry.save(context);
+			return true;
+		}
+
+		if( succeeded )
+		{
+			entry.delete(context);
+			return true;
+		}
+		if( !retryable )
+		{
+			// The server rejected it - trying again won't help.
+			entry.delete(context);
+			return false;
+		}
+		return entry.failed(context, error);
+	}
+
+	/**
+	 * Note that this entry failed, and schedule the next attempt - or give up
+	 * on it if it has failed too many times.
+	 * @param context
+	 * @param error
+	 * @return True if it will be retried.
+	 */
+	public boolean failed( Context context, String error )
+	{
+		this.setAttempts(this.getAttempts() + 1);
+		if( this.getAttempts() >= MAX_ATTEMPTS )
+		{
+			this.delete(context);
+			return false;
+		}
+
+		this.setInFlight(false);
+		this.setNextAttempt(System.currentTimeMillis() + NotifryOutboxEntry.backoff(this.getAttempts()));
+		this.setLastError(error);
+		this.save(context);
+		return true;
+	}
+
+	/**
+	 * Work out how long to wait before the given attempt. The delay doubles
+	 * each time, and a random half of it is jittered so that operations that
+	 * failed together don't all retry together.
+	 * @param attempts
+	 * @return
+	 */
+	public static long backoff( int attempts )
+	{
+		long ceiling = Math.min(BACKOFF_CAP, BACKOFF_BASE << Math.min(attempts - 1, 20));
+		long half = ceiling / 2;
+		synchronized( random )
+		{
+			return half + (long) (random.nextDouble() * half);
+		}
+	}
+
+	/**
+	 * Flatten the request's parameters into a JSON object. The format
+	 * parameter is left out, as the client adds it when it sends.
+	 * @param request
+	 * @return
+	 */
+	private static String flattenParams( BackendRequest request )
+	{
+		JSONObject values = new JSONObject();
+		try
+		{
+			for( NameValuePair pair: request.getParams() )
+			{
+				if( !pair.getName().equals("format") )
+				{
+					values.put(pair.getName(), pair.getValue());
+				}
+			}
+		}
+		catch( JSONException e )
+		{
+			// Can't happen - the names are never null.
+			throw new RuntimeException(e);
+		}
+		return values.toString();
+	}
+
+	@Override
+	public Uri getContentUri()
+	{
+		return NotifryDatabaseAdapter.CONTENT_URI_OUTBOX;
+	}
+
+	@Override
+	protected ContentValues flatten()
+	{
+		ContentValues values = new ContentValues();
+		values.put(NotifryDatabaseAdapter.KEY_OPERATION, this.getOperation());
+		values.put(NotifryDatabaseAdapter.KEY_DEDUPE_KEY, this.getDedupeKey());
+		values.put(NotifryDatabaseAdapter.KEY_ACCOUNT_NAME, this.getAccountName());
+		values.put(NotifryDatabaseAdapter.KEY_URI, this.getUri());
+		values.put(NotifryDatabaseAdapter.KEY_PARAMS, this.getParams());
+		values.put(NotifryDatabaseAdapter.KEY_ATTEMPTS, this.getAttempts());
+		values.put(NotifryDatabaseAdapter.KEY_NEXT_ATTEMPT, this.getNextAttempt());
+		values.put(NotifryDatabaseAdapter.KEY_LAST_ERROR, this.getLastError());
+		values.put(NotifryDatabaseAdapter.KEY_REVISION, this.getRevision());
+		values.put(NotifryDatabaseAdapter.KEY_IN_FLIGHT, this.getInFlight() ? 1 : 0);
+		return values;
+	}
+
+	@Override
+	protected NotifryOutboxEntry inflate( Context context, InflationContext row )
+	{
+		NotifryOutboxEntry entry = new NotifryOutboxEntry();
+		entry.setId(row.getLong(NotifryDatabaseAdapter.KEY_ID));
+		entry.setOperation(row.getString(NotifryDatabaseAdapter.KEY_OPERATION));
+		entry.setDedupeKey(row.getString(NotifryDatabaseAdapter.KEY_DEDUPE_KEY));
+		entry.setAccountName(row.getString(NotifryDatabaseAdapter.KEY_ACCOUNT_NAME));
+		entry.setUri(row.getString(NotifryDatabaseAdapter.KEY_URI));
+		entry.setParams(row.getString(NotifryDatabaseAdapter.KEY_PARAMS));
+		entry.setAttempts((int) row.getLong(NotifryDatabaseAdapter.KEY_ATTEMPTS));
+		entry.setNextAttempt(row.getLong(NotifryDatabaseAdapter.KEY_NEXT_ATTEMPT));
+		entry.setLastError(row.getString(NotifryDatabaseAdapter.KEY_LAST_ERROR));
+		entry.setRevision(row.getInt(NotifryDatabaseAdapter.KEY_REVISION));
+		entry.setInFlight(row.getBoolean(NotifryDatabaseAdapter.KEY_IN_FLIGHT));
+		return entry;
+	}
+
+	@Override
+	protected String[] getProjection()
+	{
+		return NotifryDatabaseAdapter.OUTBOX_PROJECTION;
+	}
+}
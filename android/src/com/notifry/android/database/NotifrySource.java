@@ -18,23 +18,31 @@
 
 package com.notifry.android.database;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.notifry.android.remote.JsonPullReader;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
 import android.net.Uri;
+import android.text.TextUtils;
 
 public class NotifrySource extends ORM<NotifrySource>
 {
 	private static final String TAG = "Notifry";
 	
 	public static final NotifrySource FACTORY = new NotifrySource();
+	private static final ObjectCache<NotifrySource> CACHE = new ObjectCache<NotifrySource>(FACTORY, NotifryDatabaseAdapter.KEY_SERVER_ID, NotifryDatabaseAdapter.KEY_ACCOUNT_NAME);
 
 	private String accountName = null;
 	private String changeTimestamp = null;
@@ -49,6 +57,9 @@ public class NotifrySource extends ORM<NotifrySource>
 	private String customRingtone = "";
 	private Boolean ledFlash = false;
 	private Boolean speakMessage = false;
+	private Integer retentionMaxAge = 0;
+	private Integer retentionMaxCount = 0;
+	private Boolean retentionKeepUnread = false;
 	
 	/**
 	 * Get the notification ID.
@@ -195,6 +206,48 @@ public class NotifrySource extends ORM<NotifrySource>
 		this.speakMessage = speakMessage;
 	}
 
+	/**
+	 * How many days to keep messages for, or 0 to use the global setting.
+	 * @return
+	 */
+	public Integer getRetentionMaxAge()
+	{
+		return retentionMaxAge;
+	}
+
+	public void setRetentionMaxAge( Integer retentionMaxAge )
+	{
+		this.retentionMaxAge = retentionMaxAge;
+	}
+
+	/**
+	 * The most messages to keep, or 0 for no limit.
+	 * @return
+	 */
+	public Integer getRetentionMaxCount()
+	{
+		return retentionMaxCount;
+	}
+
+	public void setRetentionMaxCount( Integer retentionMaxCount )
+	{
+		this.retentionMaxCount = retentionMaxCount;
+	}
+
+	/**
+	 * If true, unread messages are never removed by the retention pass.
+	 * @return
+	 */
+	public Boolean getRetentionKeepUnread()
+	{
+		return retentionKeepUnread;
+	}
+
+	public void setRetentionKeepUnread( Boolean retentionKeepUnread )
+	{
+		this.retentionKeepUnread = retentionKeepUnread;
+	}
+
 	public void fromJSONObject( JSONObject source ) throws JSONException
 	{
 		this.changeTimestamp = source.getString("updated");
@@ -203,10 +256,76 @@ public class NotifrySource extends ORM<NotifrySource>
 		this.sourceKey = source.getString("key");
 		this.serverId = source.getLong("id");
 	}
+
+	/**
+	 * Read a source object, as sent by the server, from a JSON stream.
+	 * @param reader
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	public void fromJsonReader( JsonPullReader reader ) throws IOException, JSONException
+	{
+		reader.beginObject();
+		while( reader.hasNext() )
+		{
+			String name = reader.nextName();
+			if( name.equals("updated") )
+			{
+				this.changeTimestamp = reader.nextString();
+			}
+			else if( name.equals("title") )
+			{
+				this.title = reader.nextString();
+			}
+			else if( name.equals("enabled") )
+			{
+				this.serverEnabled = reader.nextBoolean();
+			}
+			else if( name.equals("key") )
+			{
+				this.sourceKey = reader.nextString();
+			}
+			else if( name.equals("id") )
+			{
+				this.serverId = reader.nextLong();
+			}
+			else
+			{
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if( this.serverId == null || this.title == null || this.serverEnabled == null )
+		{
+			throw new JSONException("Source from the server is missing fields.");
+		}
+	}
+
+	/**
+	 * Copy the server's fields from another copy of this source.
+	 * @param other
+	 */
+	public void updateFromServer( NotifrySource other )
+	{
+		this.changeTimestamp = other.getChangeTimestamp();
+		this.title = other.getTitle();
+		this.serverEnabled = other.getServerEnabled();
+		this.sourceKey = other.getSourceKey();
+		this.serverId = other.getServerId();
+	}
 	
 	public ArrayList<NotifrySource> listAll( Context context, String accountName )
 	{
-		return NotifrySource.FACTORY.genericList(context, NotifryDatabaseAdapter.KEY_ACCOUNT_NAME + "= ?", new String[] { accountName }, NotifryDatabaseAdapter.KEY_TITLE + " ASC");
+		ArrayList<NotifrySource> result = CACHE.find(context, NotifryDatabaseAdapter.KEY_ACCOUNT_NAME, accountName);
+		Collections.sort(result, new Comparator<NotifrySource>()
+		{
+			public int compare( NotifrySource a, NotifrySource b )
+			{
+				return a.getTitle().compareTo(b.getTitle());
+			}
+		});
+		return result;
 	}
 	
 	public int countSources( Context context, String accountName )
@@ -223,62 +342,168 @@ public class NotifrySource extends ORM<NotifrySource>
 	
 	public NotifrySource getByServerId( Context context, Long serverId )
 	{
-		return NotifrySource.FACTORY.getOne(context, NotifryDatabaseAdapter.KEY_SERVER_ID + "=" + serverId, null);
+		return CACHE.findOne(context, NotifryDatabaseAdapter.KEY_SERVER_ID, serverId);
 	}
-	
-	public ArrayList<NotifrySource> syncFromJSONArray( Context context, JSONArray sourceList, String accountName ) throws JSONException
+
+	/**
+	 * Get a number that changes every time a source is saved or deleted, to
+	 * tell if anything worked out from the sources is out of date.
+	 * @return
+	 */
+	public long getGeneration()
 	{
-		ArrayList<NotifrySource> result = new ArrayList<NotifrySource>();
-		HashSet<Long> seenIds = new HashSet<Long>();
-		
-		for( int i = 0; i < sourceList.length(); i++ )
+		return CACHE.getGeneration();
+	}
+	
+	/**
+	 * Syncs the local sources for an account with the server's list.
+	 * 
+	 * For a full sync, each batch is saved as it arrives, and once the whole
+	 * list has been seen any local sources that were not in it are deleted.
+	 * For a delta sync the changes are small, so they are kept until the end
+	 * and applied in one transaction, along with the deletions. Either way,
+	 * the account's sync timestamp and the list's ETag are updated in the
+	 * final transaction.
+	 */
+	public static class Sync implements NotifrySourceStream.Listener
+	{
+		private final Context context;
+		private final String accountName;
+		private final boolean delta;
+		private final ArrayList<NotifrySource> result = new ArrayList<NotifrySource>();
+		private final ArrayList<NotifrySource> pending = new ArrayList<NotifrySource>();
+		private final HashSet<Long> seenServerIds = new HashSet<Long>();
+		private final ArrayList<Long> deletedServerIds = new ArrayList<Long>();
+
+		/**
+		 * @param context
+		 * @param accountName
+		 * @param delta True if only the changes since the last sync were asked for.
+		 */
+		public Sync( Context context, String accountName, boolean delta )
+		{
+			this.context = context;
+			this.accountName = accountName;
+			this.delta = delta;
+		}
+
+		public void onSources( List<NotifrySource> serverSources )
 		{
-			// See if we can find a local object with that ID.
-			JSONObject object = sourceList.getJSONObject(i);
-			Long serverId = object.getLong("id");
-			
-			NotifrySource source = NotifrySource.FACTORY.getByServerId(context, serverId);
-			
-			if( source == null )
+			ArrayList<NotifrySource> batch = new ArrayList<NotifrySource>();
+
+			for( NotifrySource serverSource: serverSources )
+			{
+				// See if we can find a local object with that ID.
+				NotifrySource source = NotifrySource.FACTORY.getByServerId(this.context, serverSource.getServerId());
+
+				if( source == null )
+				{
+					// We don't have that source locally. Create it.
+					source = serverSource;
+					// It's only locally enabled if the server has it enabled.
+					source.setLocalEnabled(source.getServerEnabled());
+					source.setAccountName(this.accountName);
+				}
+				else
+				{
+					// Server already has it. Assume the server is the most up to date version.
+					source.updateFromServer(serverSource);
+				}
+
+				batch.add(source);
+				this.seenServerIds.add(source.getServerId());
+			}
+
+			if( this.delta )
 			{
-				// We don't have that source locally. Create it.
-				source = new NotifrySource();
-				source.fromJSONObject(object);
-				// It's only locally enabled if the server has it enabled.
-				source.setLocalEnabled(source.getServerEnabled());
-				source.setAccountName(accountName);
+				// Wait until the end, and apply all the changes together.
+				this.pending.addAll(batch);
 			}
 			else
 			{
-				// Server already has it. Assume the server is the most up to date version.
-				source.fromJSONObject(object);
+				// Save them all in the database, in one go.
+				NotifrySource.FACTORY.saveAll(this.context, batch);
 			}
-			
-			// Save it in the database.
-			source.save(context);
-			
-			seenIds.add(source.getId());
+
+			this.result.addAll(batch);
 		}
-		
-		// Now, find out the IDs that exist in our database but were not in our list.
-		// Those have been deleted.
-		ArrayList<NotifrySource> allSources = NotifrySource.FACTORY.listAll(context, accountName);
-		HashSet<Long> allIds = new HashSet<Long>();
-		for( NotifrySource source: allSources )
+
+		public void onDeleted( List<Long> serverIds )
 		{
-			allIds.add(source.getId());
+			this.deletedServerIds.addAll(serverIds);
 		}
-		
-		allIds.removeAll(seenIds);
 
-		for( Long sourceId: allIds )
+		public void onComplete( boolean full, String syncTimestamp, String etag )
 		{
-			NotifrySource source = NotifrySource.FACTORY.get(context, sourceId);
-			NotifryMessage.FACTORY.deleteMessagesBySource(context, source, false);
-			source.delete(context);
+			// Find the local sources that have been deleted on the server.
+			ArrayList<Long> goneIds = new ArrayList<Long>();
+			if( full )
+			{
+				// Anything we have that wasn't in the list.
+				for( NotifrySource source: NotifrySource.FACTORY.listAll(this.context, this.accountName) )
+				{
+					if( !this.seenServerIds.contains(source.getServerId()) )
+					{
+						goneIds.add(source.getId());
+					}
+				}
+			}
+			else
+			{
+				for( Long serverId: this.deletedServerIds )
+				{
+					NotifrySource source = NotifrySource.FACTORY.getByServerId(this.context, serverId);
+					if( source != null && this.accountName.equals(source.getAccountName()) )
+					{
+						goneIds.add(source.getId());
+					}
+				}
+			}
+
+			NotifryAccount account = NotifryAccount.FACTORY.getByAccountName(this.context, this.accountName);
+			long sourceGeneration = NotifrySource.FACTORY.getCacheGeneration();
+			long accountGeneration = NotifryAccount.FACTORY.getCacheGeneration();
+
+			// Now build one batch with the changes, the deletions and the account's new sync time.
+			ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+			NotifrySource.FACTORY.addSaveOperations(operations, this.pending);
+
+			if( goneIds.size() > 0 )
+			{
+				String ids = TextUtils.join(",", goneIds);
+				operations.add(ContentProviderOperation.newDelete(NotifryDatabaseAdapter.CONTENT_URI_MESSAGES)
+						.withSelection(NotifryDatabaseAdapter.KEY_SOURCE_ID + " IN (" + ids + ")", null)
+						.build());
+				operations.add(ContentProviderOperation.newDelete(NotifryDatabaseAdapter.CONTENT_URI_SOURCES)
+						.withSelection(NotifryDatabaseAdapter.KEY_ID + " IN (" + ids + ")", null)
+						.build());
+			}
+
+			int accountOffset = operations.size();
+			List<NotifryAccount> accounts = new ArrayList<NotifryAccount>();
+			if( account != null )
+			{
+				account.setRequiresSync(false);
+				account.setSourceSyncTimestamp(syncTimestamp);
+				account.setSourceListETag(etag);
+				accounts.add(account);
+				NotifryAccount.FACTORY.addSaveOperations(operations, accounts);
+			}
+
+			if( operations.size() == 0 )
+			{
+				return;
+			}
+
+			ContentProviderResult[] results = ORM.applyBatch(this.context, NotifryDatabaseAdapter.PROVIDER_NAME_SOURCES, operations);
+			NotifrySource.FACTORY.saved(this.pending, results, 0, sourceGeneration);
+			NotifryAccount.FACTORY.saved(accounts, results, accountOffset, accountGeneration);
 		}
 
-		return result;
+		public ArrayList<NotifrySource> getResult()
+		{
+			return this.result;
+		}
 	}
 
 	@Override
@@ -304,32 +529,44 @@ public class NotifrySource extends ORM<NotifrySource>
 		values.put(NotifryDatabaseAdapter.KEY_CUSTOM_RINGTONE, this.getCustomRingtone());
 		values.put(NotifryDatabaseAdapter.KEY_LED_FLASH, this.getLedFlash() ? 1 : 0);
 		values.put(NotifryDatabaseAdapter.KEY_SPEAK_MESSAGE, this.getSpeakMessage() ? 1 : 0);
+		values.put(NotifryDatabaseAdapter.KEY_RETENTION_MAX_AGE, this.getRetentionMaxAge());
+		values.put(NotifryDatabaseAdapter.KEY_RETENTION_MAX_COUNT, this.getRetentionMaxCount());
+		values.put(NotifryDatabaseAdapter.KEY_RETENTION_KEEP_UNREAD, this.getRetentionKeepUnread() ? 1 : 0);
 		return values;
 	}
 
 	@Override
-	protected NotifrySource inflate( Context context, Cursor cursor )
+	protected NotifrySource inflate( Context context, InflationContext row )
 	{
 		NotifrySource source = new NotifrySource();
-		source.setAccountName(cursor.getString(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_ACCOUNT_NAME)));
-		source.setId(cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_ID)));
-		source.setServerEnabled(cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_SERVER_ENABLED)) == 0 ? false : true);
-		source.setLocalEnabled(cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_LOCAL_ENABLED)) == 0 ? false : true);
-		source.setServerId(cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_SERVER_ID)));
-		source.setTitle(cursor.getString(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_TITLE)));
-		source.setChangeTimestamp(cursor.getString(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_CHANGE_TIMESTAMP)));
-		source.setSourceKey(cursor.getString(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_SOURCE_KEY)));
+		source.setAccountName(row.getString(NotifryDatabaseAdapter.KEY_ACCOUNT_NAME));
+		source.setId(row.getLong(NotifryDatabaseAdapter.KEY_ID));
+		source.setServerEnabled(row.getBoolean(NotifryDatabaseAdapter.KEY_SERVER_ENABLED));
+		source.setLocalEnabled(row.getBoolean(NotifryDatabaseAdapter.KEY_LOCAL_ENABLED));
+		source.setServerId(row.getLong(NotifryDatabaseAdapter.KEY_SERVER_ID));
+		source.setTitle(row.getString(NotifryDatabaseAdapter.KEY_TITLE));
+		source.setChangeTimestamp(row.getString(NotifryDatabaseAdapter.KEY_CHANGE_TIMESTAMP));
+		source.setSourceKey(row.getString(NotifryDatabaseAdapter.KEY_SOURCE_KEY));
 		
-		source.setUseGlobalNotification(cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_USE_GLOBAL_NOTIFICATION)) == 0 ? false : true);
-		source.setVibrate(cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_VIBRATE)) == 0 ? false : true);
-		source.setRingtone(cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_RINGTONE)) == 0 ? false : true);
-		source.setLedFlash(cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_LED_FLASH)) == 0 ? false : true);
-		source.setCustomRingtone(cursor.getString(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_CUSTOM_RINGTONE)));
-		source.setSpeakMessage(cursor.getLong(cursor.getColumnIndex(NotifryDatabaseAdapter.KEY_SPEAK_MESSAGE)) == 0 ? false : true);
+		source.setUseGlobalNotification(row.getBoolean(NotifryDatabaseAdapter.KEY_USE_GLOBAL_NOTIFICATION));
+		source.setVibrate(row.getBoolean(NotifryDatabaseAdapter.KEY_VIBRATE));
+		source.setRingtone(row.getBoolean(NotifryDatabaseAdapter.KEY_RINGTONE));
+		source.setLedFlash(row.getBoolean(NotifryDatabaseAdapter.KEY_LED_FLASH));
+		source.setCustomRingtone(row.getString(NotifryDatabaseAdapter.KEY_CUSTOM_RINGTONE));
+		source.setSpeakMessage(row.getBoolean(NotifryDatabaseAdapter.KEY_SPEAK_MESSAGE));
+		source.setRetentionMaxAge(row.getInt(NotifryDatabaseAdapter.KEY_RETENTION_MAX_AGE));
+		source.setRetentionMaxCount(row.getInt(NotifryDatabaseAdapter.KEY_RETENTION_MAX_COUNT));
+		source.setRetentionKeepUnread(row.getBoolean(NotifryDatabaseAdapter.KEY_RETENTION_KEEP_UNREAD));
 		
 		return source;
 	}
 
+	@Override
+	protected ObjectCache<NotifrySource> getCache()
+	{
+		return CACHE;
+	}
+
 	@Override
 	protected String[] getProjection()
 	{
@@ -0,0 +1,144 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.notifry.android.database;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+
+import com.notifry.android.remote.BackendResponse;
+import com.notifry.android.remote.BackendStreamHandler;
+import com.notifry.android.remote.JsonPullReader;
+
+/**
+ * Decodes the "sources" list of a /sources/list response straight into
+ * NotifrySource objects, handing them to a listener in small batches as
+ * they come off the network. If the request asked for the changes since
+ * the last sync, the "deleted" list of server IDs is decoded too.
+ */
+public class NotifrySourceStream implements BackendStreamHandler
+{
+	private static final int BATCH_SIZE = 25;
+
+	/**
+	 * Receives the sources as they are decoded. Called on the request's
+	 * background thread.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called with each batch of sources, in the order the server sent them.
+		 * @param sources
+		 */
+		public void onSources( List<NotifrySource> sources );
+
+		/**
+		 * Called with the server IDs of sources deleted since the last sync.
+		 * @param serverIds
+		 */
+		public void onDeleted( List<Long> serverIds );
+
+		/**
+		 * Called once the whole response has been read.
+		 * @param full True if the server sent every source, rather than just the changes.
+		 * @param syncTimestamp The server's time for this sync, or NULL if it didn't give one.
+		 * @param etag The ETag of the list, or NULL if the server didn't give one.
+		 */
+		public void onComplete( boolean full, String syncTimestamp, String etag );
+	}
+
+	private final Listener listener;
+	private boolean seenList = false;
+	private boolean full = true;
+	private String syncTimestamp = null;
+
+	public NotifrySourceStream( Listener listener )
+	{
+		this.listener = listener;
+	}
+
+	public boolean onValue( String name, JsonPullReader reader ) throws IOException, JSONException
+	{
+		if( name.equals("deleted") )
+		{
+			ArrayList<Long> serverIds = new ArrayList<Long>();
+			reader.beginArray();
+			while( reader.hasNext() )
+			{
+				serverIds.add(reader.nextLong());
+			}
+			reader.endArray();
+
+			this.listener.onDeleted(serverIds);
+			return true;
+		}
+		else if( name.equals("full") )
+		{
+			this.full = reader.nextBoolean();
+			return true;
+		}
+		else if( name.equals("sync_timestamp") )
+		{
+			this.syncTimestamp = reader.nextString();
+			return true;
+		}
+		else if( !name.equals("sources") )
+		{
+			return false;
+		}
+
+		ArrayList<NotifrySource> batch = new ArrayList<NotifrySource>();
+		reader.beginArray();
+		while( reader.hasNext() )
+		{
+			NotifrySource source = new NotifrySource();
+			source.fromJsonReader(reader);
+			batch.add(source);
+
+			if( batch.size() >= BATCH_SIZE )
+			{
+				this.listener.onSources(batch);
+				batch = new ArrayList<NotifrySource>();
+			}
+		}
+		reader.endArray();
+
+		if( batch.size() > 0 )
+		{
+			this.listener.onSources(batch);
+		}
+
+		this.seenList = true;
+		return true;
+	}
+
+	public void onComplete( BackendResponse response ) throws JSONException
+	{
+		// Only finish if we got the list - otherwise the listener would
+		// think every source had been deleted.
+		if( !this.seenList )
+		{
+			throw new JSONException("No sources in the response.");
+		}
+
+		this.listener.onComplete(this.full, this.syncTimestamp, response.getETag());
+	}
+}
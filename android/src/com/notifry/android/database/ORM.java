@@ -19,14 +19,21 @@
 package com.notifry.android.database;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.net.Uri;
+import android.os.RemoteException;
 
-public abstract class ORM<T>
+public abstract class ORM<T extends ORM<T>> implements Cloneable
 {
 	protected static final String TAG = "Notifry";
 	
@@ -41,6 +48,9 @@ public abstract class ORM<T>
 	 */
 	public void save( Context context )
 	{
+		ObjectCache<T> cache = this.getCache();
+		long generation = cache == null ? 0 : cache.getGeneration();
+
 		if( this.getId() == null )
 		{
 			// Insert.
@@ -54,8 +64,123 @@ public abstract class ORM<T>
 			ContentValues values = this.flatten();
 			context.getContentResolver().update(this.getItemUri(), values, NotifryDatabaseAdapter.KEY_ID + "=" + this.getId(), null);
 		}
+
+		if( cache != null )
+		{
+			cache.written(Collections.singletonList(this.self()), generation);
+		}
 	}
 	
+	/**
+	 * Save a collection of objects to the database in a single transaction.
+	 * New objects are inserted and have their IDs set, existing ones are updated.
+	 * Observers get one change notification at the end rather than one per object.
+	 * @param context
+	 * @param objects
+	 */
+	public void saveAll( Context context, Collection<T> objects )
+	{
+		if( objects.size() == 0 )
+		{
+			return;
+		}
+
+		long generation = this.getCacheGeneration();
+
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(objects.size());
+		this.addSaveOperations(operations, objects);
+
+		ContentProviderResult[] results = ORM.applyBatch(context, this.getContentUri().getAuthority(), operations);
+		this.saved(objects, results, 0, generation);
+	}
+
+	/**
+	 * Add the operations to save the given objects to a batch. Once the batch
+	 * has been applied, pass the results to saved().
+	 * @param operations
+	 * @param objects
+	 */
+	protected void addSaveOperations( ArrayList<ContentProviderOperation> operations, Collection<T> objects )
+	{
+		for( T object: objects )
+		{
+			if( object.getId() == null )
+			{
+				operations.add(ContentProviderOperation.newInsert(this.getContentUri())
+						.withValues(object.flatten())
+						.build());
+			}
+			else
+			{
+				operations.add(ContentProviderOperation.newUpdate(object.getItemUri())
+						.withValues(object.flatten())
+						.withSelection(NotifryDatabaseAdapter.KEY_ID + "=" + object.getId(), null)
+						.build());
+			}
+		}
+	}
+
+	/**
+	 * Update the objects after their save operations were applied - the
+	 * inserted ones get their IDs, and the cache is updated.
+	 * @param objects
+	 * @param results The results of the whole batch.
+	 * @param offset The index of the first of these objects' operations in the batch.
+	 * @param generation The cache generation from before the batch was applied.
+	 */
+	protected void saved( Collection<T> objects, ContentProviderResult[] results, int offset, long generation )
+	{
+		int index = offset;
+		for( T object: objects )
+		{
+			if( object.getId() == null )
+			{
+				object.setId(ContentUris.parseId(results[index].uri));
+			}
+			index++;
+		}
+
+		ObjectCache<T> cache = this.getCache();
+		if( cache != null )
+		{
+			cache.written(objects, generation);
+		}
+	}
+
+	/**
+	 * Get the generation of this type's cache, to pass to saved() later.
+	 * @return
+	 */
+	protected long getCacheGeneration()
+	{
+		ObjectCache<T> cache = this.getCache();
+		return cache == null ? 0 : cache.getGeneration();
+	}
+
+	/**
+	 * Apply a batch of operations in a single transaction. All the content
+	 * URIs share one database, so the batch can mix types.
+	 * @param context
+	 * @param authority
+	 * @param operations
+	 * @return
+	 */
+	protected static ContentProviderResult[] applyBatch( Context context, String authority, ArrayList<ContentProviderOperation> operations )
+	{
+		try
+		{
+			return context.getContentResolver().applyBatch(authority, operations);
+		}
+		catch( RemoteException e )
+		{
+			throw new SQLException("Unable to save batch: " + e.getMessage());
+		}
+		catch( OperationApplicationException e )
+		{
+			throw new SQLException("Unable to save batch: " + e.getMessage());
+		}
+	}
+
 	/**
 	 * Get the URI of this item.
 	 * @return
@@ -103,6 +228,11 @@ public abstract class ORM<T>
 	 */
 	public T get( Context context, Long id )
 	{
+		ObjectCache<T> cache = this.getCache();
+		if( cache != null )
+		{
+			return cache.get(context, id);
+		}
 		return this.getOne(context, NotifryDatabaseAdapter.KEY_ID + "=" + id, null);
 	}
 	
@@ -134,13 +264,28 @@ public abstract class ORM<T>
 	 */
 	protected ArrayList<T> genericList( Context context, String selection, String[] selectionArgs, String sortOrder )
 	{
-		Cursor cursor = context.getContentResolver().query(this.getContentUri(), this.getProjection(), selection, selectionArgs, sortOrder);
+		return this.genericList(context, this.getQueryUri(), selection, selectionArgs, sortOrder);
+	}
+
+	/**
+	 * List entries from the given URI, inflating them as required.
+	 * @param context
+	 * @param uri
+	 * @param selection
+	 * @param selectionArgs
+	 * @param sortOrder
+	 * @return
+	 */
+	protected ArrayList<T> genericList( Context context, Uri uri, String selection, String[] selectionArgs, String sortOrder )
+	{
+		Cursor cursor = context.getContentResolver().query(uri, this.getProjection(), selection, selectionArgs, sortOrder);
 		ArrayList<T> result = new ArrayList<T>();
+		InflationContext row = new InflationContext(cursor);
 		if( cursor.moveToFirst() )
 		{
 			do
 			{
-				result.add(this.inflate(context, cursor));
+				result.add(this.inflate(context, row));
 			}
 			while( cursor.moveToNext() );
 		}
@@ -157,7 +302,7 @@ public abstract class ORM<T>
 	 */
 	protected int genericCount( Context context, String selection, String[] selectionArgs )
 	{
-		Cursor cursor = context.getContentResolver().query(this.getContentUri(), this.getProjection(), selection, selectionArgs, null);
+		Cursor cursor = context.getContentResolver().query(this.getContentUri(), new String[] { NotifryDatabaseAdapter.KEY_ID }, selection, selectionArgs, null);
 		int count = cursor.getCount();
 		cursor.close();
 		return count;
@@ -184,11 +329,58 @@ public abstract class ORM<T>
 		}
 	}
 
+	/**
+	 * Make a copy of this object.
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public T copy()
+	{
+		try
+		{
+			return (T) this.clone();
+		}
+		catch( CloneNotSupportedException e )
+		{
+			// Can't happen - we implement Cloneable.
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * This object, as its own type.
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private T self()
+	{
+		return (T) this;
+	}
+
+	/**
+	 * Get the in memory cache for this ORM type, or NULL if it isn't cached.
+	 * @return
+	 */
+	protected ObjectCache<T> getCache()
+	{
+		return null;
+	}
+
 	/**
 	 * Get the content URI for this ORM type.
 	 * @return
 	 */
 	public abstract Uri getContentUri();
+
+	/**
+	 * Get the URI that objects of this type are read from. This is the content
+	 * URI unless the type reads through a join.
+	 * @return
+	 */
+	public Uri getQueryUri()
+	{
+		return this.getContentUri();
+	}
 	
 	/**
 	 * Flatten the objects data into a set of content values.
@@ -196,11 +388,12 @@ public abstract class ORM<T>
 	 */
 	protected abstract ContentValues flatten();
 	/**
-	 * Inflate this object from the given cursor.
-	 * @param cursor
+	 * Inflate this object from the current row of a result set.
+	 * @param context
+	 * @param row
 	 * @return
 	 */
-	protected abstract T inflate( Context context, Cursor cursor );
+	protected abstract T inflate( Context context, InflationContext row );
 	/**
 	 * Get the projection required when querying this object.
 	 * @return
@@ -0,0 +1,376 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.notifry.android.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+
+/**
+ * A process wide, in memory copy of a small table, for objects that are read
+ * far more often than they are written (accounts and sources). Objects can be
+ * looked up by ID or by any of the index columns given when the cache is
+ * created. Lookups return copies, so callers can modify them freely.
+ * 
+ * The content provider invalidates entries as it writes to the table, and
+ * invalidated entries are reloaded on the next lookup. Saves made through the
+ * ORM are written through to the cache, so they don't need a reload.
+ */
+public class ObjectCache<T extends ORM<T>>
+{
+	/**
+	 * How many times to try and bring the cache up to date, if writes keep
+	 * happening while it reloads, before querying the database directly.
+	 */
+	private static final int REFRESH_ATTEMPTS = 3;
+
+	/**
+	 * All the caches, by the content URI of the table they cache.
+	 */
+	private static final HashMap<Uri, ObjectCache<?>> caches = new HashMap<Uri, ObjectCache<?>>();
+
+	private final T factory;
+	private final String[] indexColumns;
+	private final HashMap<Long, T> objects = new HashMap<Long, T>();
+	private final HashMap<String, HashMap<Object, LinkedHashSet<Long>>> indexes = new HashMap<String, HashMap<Object, LinkedHashSet<Long>>>();
+	private final HashSet<Long> staleIds = new HashSet<Long>();
+	private boolean complete = false;
+	private long generation = 0;
+
+	/**
+	 * Create a cache for the table of the given ORM type.
+	 * @param factory The factory instance of the ORM type.
+	 * @param indexColumns The columns that objects can be looked up by.
+	 */
+	public ObjectCache( T factory, String... indexColumns )
+	{
+		this.factory = factory;
+		this.indexColumns = indexColumns;
+		for( String column: indexColumns )
+		{
+			this.indexes.put(column, new HashMap<Object, LinkedHashSet<Long>>());
+		}
+
+		synchronized( caches )
+		{
+			caches.put(factory.getContentUri(), this);
+		}
+	}
+
+	/**
+	 * Mark a single object as changed in the database.
+	 * @param contentUri The content URI of the table.
+	 * @param id
+	 */
+	public static void invalidate( Uri contentUri, long id )
+	{
+		ObjectCache<?> cache = ObjectCache.forUri(contentUri);
+		if( cache != null )
+		{
+			cache.invalidateObject(id);
+		}
+	}
+
+	/**
+	 * Mark the whole table as changed in the database.
+	 * @param contentUri The content URI of the table.
+	 */
+	public static void invalidateAll( Uri contentUri )
+	{
+		ObjectCache<?> cache = ObjectCache.forUri(contentUri);
+		if( cache != null )
+		{
+			cache.invalidateAllObjects();
+		}
+	}
+
+	private static ObjectCache<?> forUri( Uri contentUri )
+	{
+		synchronized( caches )
+		{
+			return caches.get(contentUri);
+		}
+	}
+
+	/**
+	 * Get the generation of the cache. This changes every time the table
+	 * changes, so it can be used to tell if anything derived from the cached
+	 * objects is out of date.
+	 * @return
+	 */
+	public synchronized long getGeneration()
+	{
+		return this.generation;
+	}
+
+	private synchronized void invalidateObject( long id )
+	{
+		this.staleIds.add(id);
+		this.generation++;
+	}
+
+	private synchronized void invalidateAllObjects()
+	{
+		this.complete = false;
+		this.staleIds.clear();
+		this.generation++;
+	}
+
+	/**
+	 * Record objects that were just saved through the ORM. If the only changes
+	 * to the table since the given generation were those saves, the objects go
+	 * straight into the cache; otherwise they are left to be reloaded.
+	 * @param saved
+	 * @param before The generation before the objects were saved.
+	 */
+	public synchronized void written( Collection<T> saved, long before )
+	{
+		if( !this.complete || this.generation != before + saved.size() )
+		{
+			return;
+		}
+
+		for( T object: saved )
+		{
+			this.put(object.copy());
+			this.staleIds.remove(object.getId());
+		}
+	}
+
+	/**
+	 * Get a single object by ID, or NULL if it doesn't exist.
+	 * @param context
+	 * @param id
+	 * @return
+	 */
+	public T get( Context context, Long id )
+	{
+		return this.findOne(context, NotifryDatabaseAdapter.KEY_ID, id);
+	}
+
+	/**
+	 * Get the first object with the given value in an index column, or NULL
+	 * if there is none.
+	 * @param context
+	 * @param column
+	 * @param value
+	 * @return
+	 */
+	public T findOne( Context context, String column, Object value )
+	{
+		ArrayList<T> result = this.find(context, column, value);
+		if( result.size() == 0 )
+		{
+			return null;
+		}
+		return result.get(0);
+	}
+
+	/**
+	 * Get all the objects with the given value in an index column.
+	 * @param context
+	 * @param column
+	 * @param value
+	 * @return
+	 */
+	public ArrayList<T> find( Context context, String column, Object value )
+	{
+		if( value == null )
+		{
+			return new ArrayList<T>();
+		}
+
+		for( int attempt = 0; attempt < REFRESH_ATTEMPTS; attempt++ )
+		{
+			long expected;
+			ArrayList<Long> reloadIds = null;
+			synchronized( this )
+			{
+				if( this.complete && this.staleIds.isEmpty() )
+				{
+					return this.lookup(column, value);
+				}
+				expected = this.generation;
+				if( this.complete )
+				{
+					reloadIds = new ArrayList<Long>(this.staleIds);
+				}
+			}
+
+			// Query outside the lock - the provider may need to invalidate
+			// while this is running.
+			ArrayList<T> loaded;
+			if( reloadIds == null )
+			{
+				loaded = this.factory.genericList(context, null, null, null);
+			}
+			else
+			{
+				loaded = this.factory.genericList(context, NotifryDatabaseAdapter.KEY_ID + " IN (" + ObjectCache.join(reloadIds) + ")", null, null);
+			}
+
+			synchronized( this )
+			{
+				// Only use the results if nothing changed while loading.
+				if( this.generation == expected )
+				{
+					if( reloadIds == null )
+					{
+						this.objects.clear();
+						for( HashMap<Object, LinkedHashSet<Long>> index: this.indexes.values() )
+						{
+							index.clear();
+						}
+						this.complete = true;
+						this.staleIds.clear();
+					}
+					else
+					{
+						for( Long id: reloadIds )
+						{
+							this.remove(id);
+						}
+						this.staleIds.removeAll(reloadIds);
+					}
+
+					for( T object: loaded )
+					{
+						this.put(object);
+					}
+
+					return this.lookup(column, value);
+				}
+			}
+		}
+
+		// The table kept changing while reloading - go straight to the database.
+		return this.factory.genericList(context, column + "=?", new String[] { value.toString() }, null);
+	}
+
+	/**
+	 * Copies of the cached objects matching the value in the column.
+	 * Must be called with the lock held.
+	 */
+	private ArrayList<T> lookup( String column, Object value )
+	{
+		ArrayList<T> result = new ArrayList<T>();
+		if( column.equals(NotifryDatabaseAdapter.KEY_ID) )
+		{
+			T object = this.objects.get(value);
+			if( object != null )
+			{
+				result.add(object.copy());
+			}
+		}
+		else
+		{
+			HashMap<Object, LinkedHashSet<Long>> index = this.indexes.get(column);
+			if( index == null )
+			{
+				throw new IllegalArgumentException("Column " + column + " is not indexed.");
+			}
+			LinkedHashSet<Long> ids = index.get(value);
+			if( ids != null )
+			{
+				for( Long id: ids )
+				{
+					result.add(this.objects.get(id).copy());
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Add an object to the cache, replacing any previous version.
+	 * Must be called with the lock held.
+	 */
+	private void put( T object )
+	{
+		this.remove(object.getId());
+		this.objects.put(object.getId(), object);
+
+		ContentValues values = object.flatten();
+		for( String column: this.indexColumns )
+		{
+			Object value = values.get(column);
+			if( value != null )
+			{
+				HashMap<Object, LinkedHashSet<Long>> index = this.indexes.get(column);
+				LinkedHashSet<Long> ids = index.get(value);
+				if( ids == null )
+				{
+					ids = new LinkedHashSet<Long>();
+					index.put(value, ids);
+				}
+				ids.add(object.getId());
+			}
+		}
+	}
+
+	/**
+	 * Remove an object from the cache. Must be called with the lock held.
+	 */
+	private void remove( Long id )
+	{
+		T object = this.objects.remove(id);
+		if( object == null )
+		{
+			return;
+		}
+
+		ContentValues values = object.flatten();
+		for( String column: this.indexColumns )
+		{
+			Object value = values.get(column);
+			if( value != null )
+			{
+				LinkedHashSet<Long> ids = this.indexes.get(column).get(value);
+				if( ids != null )
+				{
+					ids.remove(id);
+					if( ids.isEmpty() )
+					{
+						this.indexes.get(column).remove(value);
+					}
+				}
+			}
+		}
+	}
+
+	private static String join( Collection<Long> ids )
+	{
+		StringBuilder result = new StringBuilder();
+		for( Long id: ids )
+		{
+			if( result.length() > 0 )
+			{
+				result.append(',');
+			}
+			result.append(id);
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.notifry.android.database;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small, in memory record of the most recently received messages, by
+ * server source ID and server message ID. This lets repeated deliveries of
+ * the same message be dropped before they reach the database.
+ */
+public class RecentMessages
+{
+	/**
+	 * How many messages to remember.
+	 */
+	private static final int CAPACITY = 256;
+
+	private static final LinkedHashMap<String, Boolean> recent = new LinkedHashMap<String, Boolean>(CAPACITY, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<String, Boolean> eldest )
+		{
+			return this.size() > CAPACITY;
+		}
+	};
+
+	/**
+	 * Check if the given message was received recently.
+	 * @param sourceServerId
+	 * @param messageServerId
+	 * @return
+	 */
+	public static synchronized boolean contains( long sourceServerId, long messageServerId )
+	{
+		return recent.get(RecentMessages.key(sourceServerId, messageServerId)) != null;
+	}
+
+	/**
+	 * Remember that the given message has been received.
+	 * @param sourceServerId
+	 * @param messageServerId
+	 */
+	public static synchronized void add( long sourceServerId, long messageServerId )
+	{
+		recent.put(RecentMessages.key(sourceServerId, messageServerId), Boolean.TRUE);
+	}
+
+	private static String key( long sourceServerId, long messageServerId )
+	{
+		return sourceServerId + ":" + messageServerId;
+	}
+}
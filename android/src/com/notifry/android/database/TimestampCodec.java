@@ -0,0 +1,228 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.notifry.android.database;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parses the server's timestamps and formats them for display.
+ * 
+ * Parsing is done by hand, so it doesn't create any objects. Formatting
+ * uses a formatter per thread, as DateFormat isn't thread safe, and keeps
+ * the most recently formatted strings, so scrolling back over the same
+ * messages doesn't format them again. Call invalidate() when the time zone
+ * or locale changes.
+ */
+public class TimestampCodec
+{
+	/**
+	 * How many formatted strings to keep.
+	 */
+	private static final int DISPLAY_CACHE_SIZE = 128;
+
+	private static final int[] DAYS_IN_MONTH = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+	private static final LinkedHashMap<Long, String> displayCache = new LinkedHashMap<Long, String>(DISPLAY_CACHE_SIZE, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<Long, String> eldest )
+		{
+			return this.size() > DISPLAY_CACHE_SIZE;
+		}
+	};
+
+	// Bumped on every invalidate(), so each thread knows to make a new formatter.
+	private static volatile int generation = 0;
+
+	private static final ThreadLocal<LocalFormatter> formatters = new ThreadLocal<LocalFormatter>();
+
+	private static class LocalFormatter
+	{
+		private final DateFormat format = DateFormat.getDateTimeInstance();
+		private final Date date = new Date();
+		private final int generation;
+
+		LocalFormatter( int generation )
+		{
+			this.generation = generation;
+		}
+	}
+
+	private TimestampCodec()
+	{
+		// Static methods only.
+	}
+
+	/**
+	 * Parse an ISO 8601 timestamp, as the server sends it, into milliseconds
+	 * since the epoch. The timestamp is in UTC, with optional fractional
+	 * seconds; only the first three digits of those are significant.
+	 * Anything after that is ignored.
+	 * @param value
+	 * @return
+	 * @throws ParseException
+	 */
+	public static long parseMillis( String value ) throws ParseException
+	{
+		if( value == null || value.length() < 19 ||
+				value.charAt(4) != '-' || value.charAt(7) != '-' ||
+				(value.charAt(10) != 'T' && value.charAt(10) != ' ') ||
+				value.charAt(13) != ':' || value.charAt(16) != ':' )
+		{
+			throw new ParseException("Not an ISO 8601 timestamp: " + value, 0);
+		}
+
+		int year = TimestampCodec.digits(value, 0, 4);
+		int month = TimestampCodec.digits(value, 5, 2);
+		int day = TimestampCodec.digits(value, 8, 2);
+		int hour = TimestampCodec.digits(value, 11, 2);
+		int minute = TimestampCodec.digits(value, 14, 2);
+		int second = TimestampCodec.digits(value, 17, 2);
+
+		if( month < 1 || month > 12 || day < 1 || day > TimestampCodec.daysInMonth(year, month) ||
+				hour > 23 || minute > 59 || second > 59 )
+		{
+			throw new ParseException("Timestamp out of range: " + value, 0);
+		}
+
+		long millis = ((((TimestampCodec.daysSinceEpoch(year, month, day) * 24) + hour) * 60 + minute) * 60 + second) * 1000;
+
+		if( value.length() > 19 && value.charAt(19) == '.' )
+		{
+			int scale = 100;
+			for( int position = 20; position < value.length() && scale > 0; position++ )
+			{
+				char digit = value.charAt(position);
+				if( digit < '0' || digit > '9' )
+				{
+					break;
+				}
+				millis += (digit - '0') * scale;
+				scale /= 10;
+			}
+		}
+
+		return millis;
+	}
+
+	/**
+	 * Format a time as a date and time in the local time zone and locale.
+	 * @param millis Milliseconds since the epoch.
+	 * @return
+	 */
+	public static String formatLocal( long millis )
+	{
+		Long key = Long.valueOf(millis);
+		synchronized( displayCache )
+		{
+			String cached = displayCache.get(key);
+			if( cached != null )
+			{
+				return cached;
+			}
+		}
+
+		// Note the generation first, so that if the locale or time zone changes
+		// while formatting, the result isn't cached under the new one.
+		int current = generation;
+		LocalFormatter formatter = formatters.get();
+		if( formatter == null || formatter.generation != current )
+		{
+			formatter = new LocalFormatter(current);
+			formatters.set(formatter);
+		}
+		formatter.date.setTime(millis);
+		String result = formatter.format.format(formatter.date);
+
+		synchronized( displayCache )
+		{
+			if( generation == current )
+			{
+				displayCache.put(key, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Forget the formatted strings and formatters, after the time zone or
+	 * locale changed.
+	 */
+	public static void invalidate()
+	{
+		synchronized( displayCache )
+		{
+			generation++;
+			displayCache.clear();
+		}
+	}
+
+	/**
+	 * Read a fixed number of decimal digits.
+	 * @throws ParseException If any of them isn't a digit.
+	 */
+	private static int digits( String value, int offset, int count ) throws ParseException
+	{
+		int result = 0;
+		for( int i = offset; i < offset + count; i++ )
+		{
+			char digit = value.charAt(i);
+			if( digit < '0' || digit > '9' )
+			{
+				throw new ParseException("Expected a digit: " + value, i);
+			}
+			result = result * 10 + (digit - '0');
+		}
+		return result;
+	}
+
+	private static int daysInMonth( int year, int month )
+	{
+		if( month == 2 && (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) )
+		{
+			return 29;
+		}
+		return DAYS_IN_MONTH[month - 1];
+	}
+
+	/**
+	 * Count the days from 1970-01-01 to the given date, in the proleptic
+	 * Gregorian calendar.
+	 */
+	private static long daysSinceEpoch( int year, int month, int day )
+	{
+		// Count years from March, so the leap day is at the end of the year.
+		if( month <= 2 )
+		{
+			year--;
+		}
+		long era = year / 400;
+		long yearOfEra = year - era * 400;
+		long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+}
@@ -0,0 +1,287 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.notifry.android.remote;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.AccountManagerFuture;
+import android.accounts.AuthenticatorException;
+import android.accounts.OperationCanceledException;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Caches the App Engine auth token for each account, so requests don't have
+ * to wait on the AccountManager each time.
+ * 
+ * Only one fetch runs per account at a time; anyone else who needs the token
+ * waits for that fetch rather than starting another. Tokens are treated as
+ * expired after TOKEN_LIFETIME, and one that is close to expiring is
+ * replaced in the background while the current one is still handed out.
+ */
+public class AuthTokenCache
+{
+	private static final String TAG = "Notifry";
+
+	/**
+	 * How long a token is used for. The AccountManager doesn't tell us when
+	 * tokens expire, so this is deliberately conservative.
+	 */
+	private static final long TOKEN_LIFETIME = 12 * 60 * 60 * 1000;
+
+	/**
+	 * How long before expiry a token is replaced in the background.
+	 */
+	private static final long REFRESH_AHEAD = 2 * 60 * 60 * 1000;
+
+	private static final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+	/**
+	 * The cached token for one account.
+	 */
+	private static class Entry
+	{
+		private String token = null;
+		private long fetched = 0;
+		private FutureTask<String> pending = null;
+	}
+
+	/**
+	 * Get the auth token for the account. This returns the cached token if it
+	 * is still current, otherwise fetches a new one.
+	 * @param context
+	 * @param accountName
+	 * @return The token, or NULL if it could not be fetched.
+	 * @throws BackendClient.PendingAuthException If the user has been asked for permission.
+	 */
+	public static String get( Context context, String accountName ) throws BackendClient.PendingAuthException
+	{
+		FutureTask<String> task;
+
+		synchronized( entries )
+		{
+			Entry entry = AuthTokenCache.getEntry(accountName);
+			long age = SystemClock.elapsedRealtime() - entry.fetched;
+
+			if( entry.token != null && age < TOKEN_LIFETIME )
+			{
+				if( age > TOKEN_LIFETIME - REFRESH_AHEAD && entry.pending == null )
+				{
+					// Replace it in the background, before it expires.
+					entry.pending = AuthTokenCache.createFetch(context, accountName, entry.token, false);
+					BackendExecutor.submit(entry.pending, BackendExecutor.PRIORITY_BACKGROUND, null);
+				}
+				return entry.token;
+			}
+
+			task = entry.pending;
+			if( task == null )
+			{
+				task = AuthTokenCache.createFetch(context, accountName, null, true);
+				entry.pending = task;
+			}
+		}
+
+		// Run the fetch on this thread if it hasn't started yet (for example, a
+		// background refresh still queued behind this request). If it's already
+		// running or done, this does nothing.
+		task.run();
+		return AuthTokenCache.await(task);
+	}
+
+	/**
+	 * Replace a token that the server rejected with a new one. If the token has
+	 * already been replaced, the replacement is returned.
+	 * @param context
+	 * @param accountName
+	 * @param rejectedToken
+	 * @return The new token, or NULL if it could not be fetched.
+	 * @throws BackendClient.PendingAuthException If the user has been asked for permission.
+	 */
+	public static String refresh( Context context, String accountName, String rejectedToken ) throws BackendClient.PendingAuthException
+	{
+		FutureTask<String> task;
+
+		synchronized( entries )
+		{
+			Entry entry = AuthTokenCache.getEntry(accountName);
+			task = entry.pending;
+
+			if( task == null )
+			{
+				if( entry.token != null && !entry.token.equals(rejectedToken) )
+				{
+					// Someone else has already replaced it.
+					return entry.token;
+				}
+
+				entry.token = null;
+				task = AuthTokenCache.createFetch(context, accountName, rejectedToken, true);
+				entry.pending = task;
+			}
+		}
+
+		// Run the fetch on this thread if it hasn't started yet (for example, a
+		// background refresh still queued behind this request). If it's already
+		// running or done, this does nothing.
+		task.run();
+		return AuthTokenCache.await(task);
+	}
+
+	/**
+	 * Get the entry for the account. Must be called with the lock held.
+	 */
+	private static Entry getEntry( String accountName )
+	{
+		Entry entry = entries.get(accountName);
+		if( entry == null )
+		{
+			entry = new Entry();
+			entries.put(accountName, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Create a task that fetches a new token for the account, and stores it in
+	 * the cache when it's done.
+	 * @param context
+	 * @param accountName
+	 * @param staleToken A token to invalidate first, so the AccountManager
+	 * issues a new one, or NULL.
+	 * @param interactive If the user can be asked for permission.
+	 * @return
+	 */
+	private static FutureTask<String> createFetch( final Context context, final String accountName, final String staleToken, final boolean interactive )
+	{
+		return new FutureTask<String>(new Callable<String>()
+		{
+			public String call() throws Exception
+			{
+				String token = null;
+				try
+				{
+					Account account = new Account(accountName, "com.google");
+					if( staleToken != null )
+					{
+						AccountManager.get(context).invalidateAuthToken(account.type, staleToken);
+					}
+					token = AuthTokenCache.fetch(context, account, interactive);
+					return token;
+				}
+				finally
+				{
+					synchronized( entries )
+					{
+						Entry entry = AuthTokenCache.getEntry(accountName);
+						entry.pending = null;
+						if( token != null )
+						{
+							entry.token = token;
+							entry.fetched = SystemClock.elapsedRealtime();
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait for a fetch to finish.
+	 * @param task
+	 * @return
+	 * @throws BackendClient.PendingAuthException
+	 */
+	private static String await( FutureTask<String> task ) throws BackendClient.PendingAuthException
+	{
+		try
+		{
+			return task.get();
+		}
+		catch( ExecutionException e )
+		{
+			if( e.getCause() instanceof BackendClient.PendingAuthException )
+			{
+				throw (BackendClient.PendingAuthException) e.getCause();
+			}
+			Log.w(TAG, "Failed to fetch auth token: " + e.getCause());
+			return null;
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Fetch a token from the AccountManager. This blocks.
+	 * @param context
+	 * @param account
+	 * @param interactive If the user can be asked for permission.
+	 * @return
+	 * @throws BackendClient.PendingAuthException
+	 */
+	private static String fetch( Context context, Account account, boolean interactive ) throws BackendClient.PendingAuthException
+	{
+		String authToken = null;
+		AccountManager accountManager = AccountManager.get(context);
+		try
+		{
+			AccountManagerFuture<Bundle> future = accountManager.getAuthToken(account, "ah", false, null, null);
+			Bundle bundle = future.getResult();
+			authToken = bundle.getString(AccountManager.KEY_AUTHTOKEN);
+			// User will be asked for "App Engine" permission.
+			if( authToken == null && interactive )
+			{
+				// No auth token - will need to ask permission from user.
+				Intent intent = (Intent) bundle.get(AccountManager.KEY_INTENT);
+				if( intent != null )
+				{
+					// User input required
+					context.startActivity(intent);
+					throw new BackendClient.PendingAuthException("Asking user for permission.");
+				}
+			}
+		}
+		catch( OperationCanceledException e )
+		{
+			Log.w(TAG, e.getMessage());
+		}
+		catch( AuthenticatorException e )
+		{
+			Log.w(TAG, e.getMessage());
+		}
+		catch( IOException e )
+		{
+			Log.w(TAG, e.getMessage());
+		}
+
+		return authToken;
+	}
+}
@@ -23,36 +23,86 @@ package com.notifry.android.remote;
 
 import com.notifry.android.R;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URLEncoder;
-import java.util.List;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.zip.GZIPOutputStream;
 
-import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.CookieStore;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 
-import android.accounts.Account;
-import android.accounts.AccountManager;
-import android.accounts.AccountManagerFuture;
-import android.accounts.AuthenticatorException;
-import android.accounts.OperationCanceledException;
 import android.content.Context;
-import android.content.Intent;
-import android.os.Bundle;
 import android.util.Log;
 
 public class BackendClient
 {
 	private static final String TAG = "Notifry";
 
+	/**
+	 * Connection pool limits and timeouts for the shared HTTP client.
+	 */
+	private static final int MAX_CONNECTIONS = 6;
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+	private static final int CONNECTION_TIMEOUT = 20000;
+	private static final int SOCKET_TIMEOUT = 30000;
+
+	/**
+	 * Request bodies at least this big are sent gzipped.
+	 */
+	private static final int GZIP_REQUEST_THRESHOLD = 1024;
+
+	/**
+	 * App Engine only gzips responses if the user agent mentions gzip, as
+	 * well as the Accept-Encoding header.
+	 */
+	private static final String USER_AGENT = "Notifry Android (gzip)";
+
+	/**
+	 * The name of the App Engine login cookie.
+	 */
+	private static final String LOGIN_COOKIE = "ACSID";
+
+	/**
+	 * The HTTP client shared by all requests, so connections are pooled
+	 * and kept alive between requests.
+	 */
+	private static DefaultHttpClient httpClient = null;
+
+	/**
+	 * The cookies for each account - this holds the account's login
+	 * cookie, so it's only fetched again when it expires or is rejected.
+	 */
+	private static final HashMap<String, CookieStore> sessions = new HashMap<String, CookieStore>();
+
 	private Context context;
 	private String accountName;
 	private String backendName;
@@ -64,6 +114,140 @@ public class BackendClient
 		this.backendName = "https://" + context.getString(R.string.backend_url);
 	}
 
+	/**
+	 * Get the shared HTTP client, creating it if required.
+	 * @return
+	 */
+	private static synchronized DefaultHttpClient getHttpClient()
+	{
+		if( httpClient == null )
+		{
+			HttpParams params = new BasicHttpParams();
+			HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+			HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+			HttpProtocolParams.setUserAgent(params, USER_AGENT);
+			HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+			HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+			HttpConnectionParams.setStaleCheckingEnabled(params, true);
+			ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+			ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+
+			SchemeRegistry registry = new SchemeRegistry();
+			registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+			registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+			ClientConnectionManager manager = new ThreadSafeClientConnManager(params, registry);
+			httpClient = new DefaultHttpClient(manager, params);
+		}
+
+		return httpClient;
+	}
+
+	/**
+	 * Get the cookies for the given account, creating them if required.
+	 * @param accountName
+	 * @return
+	 */
+	private static CookieStore getSession( String accountName )
+	{
+		synchronized( sessions )
+		{
+			CookieStore cookies = sessions.get(accountName);
+			if( cookies == null )
+			{
+				cookies = new BasicCookieStore();
+				sessions.put(accountName, cookies);
+			}
+			return cookies;
+		}
+	}
+
+	/**
+	 * Create an HTTP context for a single request, using the account's cookies.
+	 * Contexts aren't thread safe, so each request gets its own; the cookie
+	 * store is, so it can be shared between them.
+	 * @param cookies
+	 * @return
+	 */
+	private static HttpContext newContext( CookieStore cookies )
+	{
+		HttpContext context = new BasicHttpContext();
+		context.setAttribute(ClientContext.COOKIE_STORE, cookies);
+		return context;
+	}
+
+	/**
+	 * Check if the cookies include a login cookie that hasn't expired.
+	 * @param cookies
+	 * @return
+	 */
+	private static boolean hasLoginCookie( CookieStore cookies )
+	{
+		Date now = new Date();
+		for( Cookie cookie: cookies.getCookies() )
+		{
+			if( cookie.getName().equals(LOGIN_COOKIE) && !cookie.isExpired(now) )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Forget the login cookie, so the next request logs in again.
+	 * @param cookies
+	 */
+	private static void clearLogin( CookieStore cookies )
+	{
+		cookies.clear();
+	}
+
+	/**
+	 * Read and discard the body of a response, so the connection can go back
+	 * to the pool.
+	 * @param response
+	 */
+	public static void consume( HttpResponse response )
+	{
+		HttpEntity entity = response.getEntity();
+		if( entity != null )
+		{
+			try
+			{
+				entity.consumeContent();
+			}
+			catch( IOException e )
+			{
+				Log.w(TAG, "Failed to discard the response: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Gzip a request body, if it's big enough to be worth it.
+	 * @param entity
+	 * @return The compressed entity, or the original one if it was small.
+	 * @throws IOException
+	 */
+	private static HttpEntity compress( HttpEntity entity ) throws IOException
+	{
+		if( entity.getContentLength() < GZIP_REQUEST_THRESHOLD )
+		{
+			return entity;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+		entity.writeTo(gzip);
+		gzip.close();
+
+		ByteArrayEntity compressed = new ByteArrayEntity(bytes.toByteArray());
+		compressed.setContentType(entity.getContentType());
+		compressed.setContentEncoding("gzip");
+		return compressed;
+	}
+
 	public BackendResponse request( BackendRequest request ) throws Exception
 	{
 		try
@@ -71,10 +255,13 @@ public class BackendClient
 			// Add a 'format=json' to the params.
 			request.add("format", "json");
 			
-			HttpResponse res = requestNoRetry(request.getUri(), request.getParams(), false);
-			if( res.getStatusLine().getStatusCode() == 500 )
+			HttpResponse res = requestNoRetry(request, false);
+			int status = res.getStatusLine().getStatusCode();
+			if( status == 500 || status == 302 || status == 401 || status == 403 )
 			{
-				res = requestNoRetry(request.getUri(), request.getParams(), true);
+				// The login may have been rejected. Log in again with a new token and retry.
+				consume(res);
+				res = requestNoRetry(request, true);
 			}
 			
 			// Parse the response.
@@ -92,25 +279,59 @@ public class BackendClient
 		}
 	}
 
-	private HttpResponse requestNoRetry( String urlPath, List<NameValuePair> params, boolean newToken ) throws Exception
+	private HttpResponse requestNoRetry( BackendRequest request, boolean newToken ) throws Exception
 	{
-		// Get auth token for account
-		Account account = new Account(this.accountName, "com.google");
-		String authToken = getAuthToken(this.context, account);
-		if( authToken == null )
+		DefaultHttpClient client = BackendClient.getHttpClient();
+		CookieStore cookies = BackendClient.getSession(this.accountName);
+
+		// Log in, unless we have a login cookie that is still good. This is
+		// done by one request at a time for each account, so concurrent
+		// requests don't clear each other's login or all log in at once.
+		synchronized( cookies )
 		{
-			throw new PendingAuthException(this.accountName);
+			if( newToken || !BackendClient.hasLoginCookie(cookies) )
+			{
+				BackendClient.clearLogin(cookies);
+				this.login(client, cookies, newToken);
+			}
 		}
+
+		// Make POST request
+		URI uri = new URI(this.backendName + request.getUri());
+		HttpPost post = new HttpPost(uri);
+		UrlEncodedFormEntity entity = new UrlEncodedFormEntity(request.getParams(), "UTF-8");
+		post.setEntity(BackendClient.compress(entity));
+		post.setHeader("X-Same-Domain", "1"); // XSRF
+		post.setHeader("Accept-Encoding", "gzip"); // BackendResponse decompresses it.
+		if( request.getIfNoneMatch() != null )
+		{
+			post.setHeader("If-None-Match", request.getIfNoneMatch());
+		}
+		return client.execute(post, BackendClient.newContext(cookies));
+	}
+
+	/**
+	 * Log in to the backend, which stores the ACSID cookie in the cookie store.
+	 * @param client
+	 * @param cookies
+	 * @param newToken If true, get a new auth token rather than the cached one.
+	 * @throws Exception
+	 */
+	private void login( DefaultHttpClient client, CookieStore cookies, boolean newToken ) throws Exception
+	{
+		// Get auth token for account
+		String authToken = AuthTokenCache.get(this.context, this.accountName);
 		if( newToken )
 		{
-			// Invalidate the cached token
-			AccountManager accountManager = AccountManager.get(this.context);
-			accountManager.invalidateAuthToken(account.type, authToken);
-			authToken = this.getAuthToken(this.context, account);
+			// The cached token may have been rejected - replace it.
+			authToken = AuthTokenCache.refresh(this.context, this.accountName, authToken);
+		}
+		if( authToken == null )
+		{
+			throw new PendingAuthException(this.accountName);
 		}
 
 		// Get ACSID cookie
-		DefaultHttpClient client = new DefaultHttpClient();
 		String continueURL = this.backendName;
 		URI uri = new URI(this.backendName + "/_ah/login?continue=" +
 				URLEncoder.encode(continueURL, "UTF-8") +
@@ -121,71 +342,16 @@ public class BackendClient
 															// used
 		method.setParams(getParams);
 
-		HttpResponse res = client.execute(method);
-		Header[] headers = res.getHeaders("Set-Cookie");
-
-		String ascidCookie = null;
-		for( Header header : headers )
-		{
-			if( header.getValue().indexOf("ACSID=") >= 0 )
-			{
-				// let's parse it
-				String value = header.getValue();
-				String[] pairs = value.split(";");
-				ascidCookie = pairs[0];
-			}
-		}
-
-		// Make POST request
-		uri = new URI(this.backendName + urlPath);
-		HttpPost post = new HttpPost(uri);
-		UrlEncodedFormEntity entity = new UrlEncodedFormEntity(params, "UTF-8");
-		post.setEntity(entity);
-		post.setHeader("Cookie", ascidCookie);
-		post.setHeader("X-Same-Domain", "1"); // XSRF
-		res = client.execute(post);
-		return res;
-	}
+		HttpResponse res = client.execute(method, BackendClient.newContext(cookies));
+		consume(res);
 
-	private String getAuthToken( Context context, Account account ) throws PendingAuthException
-	{
-		String authToken = null;
-		AccountManager accountManager = AccountManager.get(context);
-		try
-		{
-			AccountManagerFuture<Bundle> future = accountManager.getAuthToken(account, "ah", false, null, null);
-			Bundle bundle = future.getResult();
-			authToken = bundle.getString(AccountManager.KEY_AUTHTOKEN);
-			// User will be asked for "App Engine" permission.
-			if( authToken == null )
-			{
-				// No auth token - will need to ask permission from user.
-				Intent intent = (Intent) bundle.get(AccountManager.KEY_INTENT);
-				if( intent != null )
-				{
-					// User input required
-					context.startActivity(intent);
-					throw new PendingAuthException("Asking user for permission.");
-				}
-			}
-		}
-		catch( OperationCanceledException e )
+		if( !BackendClient.hasLoginCookie(cookies) )
 		{
-			Log.w(TAG, e.getMessage());
+			Log.w(TAG, "Login for " + this.accountName + " did not return an " + LOGIN_COOKIE + " cookie.");
 		}
-		catch( AuthenticatorException e )
-		{
-			Log.w(TAG, e.getMessage());
-		}
-		catch( IOException e )
-		{
-			Log.w(TAG, e.getMessage());
-		}
-
-		return authToken;
 	}
 
-	public class PendingAuthException extends Exception
+	public static class PendingAuthException extends Exception
 	{
 		private static final long serialVersionUID = 1L;
 
@@ -0,0 +1,215 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.notifry.android.remote;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs backend requests on a small, shared pool of threads. Requests the user
+ * is waiting on are run ahead of background work, and in the order they were
+ * submitted within each priority.
+ */
+public class BackendExecutor
+{
+	private static final String TAG = "Notifry";
+
+	/**
+	 * Priority for requests the user is waiting on.
+	 */
+	public static final int PRIORITY_INTERACTIVE = 0;
+
+	/**
+	 * Priority for background work, such as syncs.
+	 */
+	public static final int PRIORITY_BACKGROUND = 1;
+
+	/**
+	 * The most requests to run at once.
+	 */
+	private static final int THREADS = 3;
+
+	/**
+	 * Log a warning when the queue gets this deep.
+	 */
+	private static final int QUEUE_WARNING_DEPTH = 10;
+
+	private static ThreadPoolExecutor executor = null;
+	private static final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * Submit work to be run.
+	 * @param work
+	 * @param priority PRIORITY_INTERACTIVE or PRIORITY_BACKGROUND.
+	 * @param onCancel If not NULL, run if the work is cancelled.
+	 * @return A handle that can be used to cancel the work.
+	 */
+	public static Future<?> submit( Runnable work, int priority, Runnable onCancel )
+	{
+		Task task = new Task(work, priority, sequence.getAndIncrement(), onCancel);
+		ThreadPoolExecutor pool = BackendExecutor.getExecutor();
+		pool.execute(task);
+
+		int depth = pool.getQueue().size();
+		if( depth >= QUEUE_WARNING_DEPTH )
+		{
+			Log.w(TAG, "Backend request queue is " + depth + " deep (" + BackendExecutor.getQueueDepth(PRIORITY_INTERACTIVE) + " interactive).");
+		}
+
+		return task;
+	}
+
+	/**
+	 * The number of requests waiting to run.
+	 * @return
+	 */
+	public static int getQueueDepth()
+	{
+		return BackendExecutor.getExecutor().getQueue().size();
+	}
+
+	/**
+	 * The number of requests of the given priority waiting to run.
+	 * @param priority
+	 * @return
+	 */
+	public static int getQueueDepth( int priority )
+	{
+		int count = 0;
+		for( Object queued: BackendExecutor.getExecutor().getQueue().toArray() )
+		{
+			if( ((Task) queued).priority == priority )
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * The number of requests running right now.
+	 * @return
+	 */
+	public static int getActiveCount()
+	{
+		return BackendExecutor.getExecutor().getActiveCount();
+	}
+
+	/**
+	 * The number of requests that have finished since the process started.
+	 * @return
+	 */
+	public static long getCompletedCount()
+	{
+		return BackendExecutor.getExecutor().getCompletedTaskCount();
+	}
+
+	private static synchronized ThreadPoolExecutor getExecutor()
+	{
+		if( executor == null )
+		{
+			// The pool has a fixed size, so work is queued (in priority order)
+			// rather than starting more threads.
+			executor = new ThreadPoolExecutor(
+					THREADS,
+					THREADS,
+					60,
+					TimeUnit.SECONDS,
+					new PriorityBlockingQueue<Runnable>(),
+					new ThreadFactory()
+					{
+						private final AtomicInteger count = new AtomicInteger();
+
+						public Thread newThread( final Runnable runnable )
+						{
+							return new Thread("Notifry backend #" + count.incrementAndGet())
+							{
+								public void run()
+								{
+									Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+									runnable.run();
+								}
+							};
+						}
+					});
+		}
+		return executor;
+	}
+
+	/**
+	 * A unit of work, ordered by priority and then by when it was submitted.
+	 */
+	private static class Task extends FutureTask<Void> implements Comparable<Task>
+	{
+		private final int priority;
+		private final long sequence;
+		private final Runnable onCancel;
+
+		public Task( Runnable work, int priority, long sequence, Runnable onCancel )
+		{
+			super(work, null);
+			this.priority = priority;
+			this.sequence = sequence;
+			this.onCancel = onCancel;
+		}
+
+		public int compareTo( Task other )
+		{
+			if( this.priority != other.priority )
+			{
+				return this.priority < other.priority ? -1 : 1;
+			}
+			if( this.sequence != other.sequence )
+			{
+				return this.sequence < other.sequence ? -1 : 1;
+			}
+			return 0;
+		}
+
+		@Override
+		public boolean cancel( boolean mayInterruptIfRunning )
+		{
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if( cancelled )
+			{
+				// Don't leave it taking up space in the queue.
+				BackendExecutor.getExecutor().remove(this);
+			}
+			return cancelled;
+		}
+
+		@Override
+		protected void done()
+		{
+			if( this.isCancelled() && this.onCancel != null )
+			{
+				this.onCancel.run();
+			}
+		}
+	}
+}
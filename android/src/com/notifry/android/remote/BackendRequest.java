@@ -21,6 +21,7 @@ package com.notifry.android.remote;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
@@ -29,6 +30,7 @@ import com.notifry.android.R;
 
 import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
@@ -43,6 +45,9 @@ public class BackendRequest
 	final private HashMap<String, Object> requestMeta = new HashMap<String, Object>();
 	private ProgressDialog dialog = null;
 	private Handler responseHandler = null;
+	private BackendStreamHandler streamHandler = null;
+	private String ifNoneMatch = null;
+	private volatile Future<?> task = null;
 
 	/**
 	 * Construct a BackendRequest object for the given URI.
@@ -62,6 +67,35 @@ public class BackendRequest
 		this.responseHandler = completeHandler;
 	}
 
+	/**
+	 * Set a handler to decode the response as it arrives.
+	 * @param streamHandler
+	 */
+	public void setStreamHandler( BackendStreamHandler streamHandler )
+	{
+		this.streamHandler = streamHandler;
+	}
+
+	public BackendStreamHandler getStreamHandler()
+	{
+		return this.streamHandler;
+	}
+
+	/**
+	 * Make this a conditional request - if the server's ETag still matches
+	 * this one, it sends back 304 Not Modified instead of the body.
+	 * @param etag The ETag from the last response, or NULL.
+	 */
+	public void setIfNoneMatch( String etag )
+	{
+		this.ifNoneMatch = etag;
+	}
+
+	public String getIfNoneMatch()
+	{
+		return this.ifNoneMatch;
+	}
+
 	/**
 	 * Add a parameter to this request.
 	 * @param name
@@ -113,6 +147,23 @@ public class BackendRequest
 		return this.params;
 	}
 
+	/**
+	 * Get the value of a parameter, or NULL if it wasn't added.
+	 * @param name
+	 * @return
+	 */
+	public String getParam( String name )
+	{
+		for( NameValuePair pair: this.params )
+		{
+			if( pair.getName().equals(name) )
+			{
+				return pair.getValue();
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Get a piece of metadata. Returns NULL if not found.
 	 * @param key
@@ -149,21 +200,32 @@ public class BackendRequest
 	};
 
 	/**
-	 * Fire off this request in a thread in the background.
+	 * Fire off this request in the background. Requests that show a progress
+	 * dialog are assumed to be ones the user is waiting on, and run ahead of
+	 * the others.
 	 * @param context The context for this request.
 	 * @param statusMessage If provided, show a progress dialog with this message. If NULL, no progress dialog is shown.
 	 * @param accountName The account name to perform the request under.
+	 * @return A handle that can be used to cancel the request.
 	 */
-	public void startInThread( final Context context, final String statusMessage, final String accountName )
+	public Future<?> startInThread( final Context context, final String statusMessage, final String accountName )
 	{
-		// Set up the dialog.
-		if( statusMessage != null )
-		{
-			this.dialog = ProgressDialog.show(context, context.getString(R.string.app_name), statusMessage, true);
-		}
+		int priority = statusMessage != null ? BackendExecutor.PRIORITY_INTERACTIVE : BackendExecutor.PRIORITY_BACKGROUND;
+		return this.startInThread(context, statusMessage, accountName, priority);
+	}
 
-		// Create a new thread.
-		Thread thread = new Thread()
+	/**
+	 * Fire off this request in the background, with the given priority.
+	 * @param context The context for this request.
+	 * @param statusMessage If provided, show a progress dialog with this message. If NULL, no progress dialog is shown.
+	 * @param accountName The account name to perform the request under.
+	 * @param priority BackendExecutor.PRIORITY_INTERACTIVE or BackendExecutor.PRIORITY_BACKGROUND.
+	 * @return A handle that can be used to cancel the request.
+	 */
+	public Future<?> startInThread( final Context context, final String statusMessage, final String accountName, int priority )
+	{
+		// The work to do.
+		Runnable work = new Runnable()
 		{
 			public void run()
 			{
@@ -186,6 +248,12 @@ public class BackendRequest
 						Log.e(TAG, "Success! Server returned: " + result.getJSON().toString());
 					}*/
 
+					// Don't deliver the result if the request was cancelled meanwhile.
+					if( task != null && task.isCancelled() )
+					{
+						return;
+					}
+
 					// Prepare the message to send back.
 					Message message = Message.obtain();
 					message.obj = result;
@@ -196,11 +264,53 @@ public class BackendRequest
 				catch( Exception e )
 				{
 					Log.e(TAG, "Generic exception: " + e.getMessage() + " of type " + e.getClass().toString());
+
+					// Let the handler know it failed, so it can retry.
+					if( task == null || !task.isCancelled() )
+					{
+						Message message = Message.obtain();
+						message.obj = new BackendResponse(thisRequest, "Unable to contact the server.");
+						handler.sendMessage(message);
+					}
 				}
 			}
 		};
 
-		// And start the request.
-		thread.start();
+		// If it's cancelled, take down the dialog.
+		Runnable onCancel = new Runnable()
+		{
+			public void run()
+			{
+				handler.post(new Runnable()
+				{
+					public void run()
+					{
+						if( dialog != null )
+						{
+							dialog.dismiss();
+							dialog = null;
+						}
+					}
+				});
+			}
+		};
+
+		// And queue the request.
+		this.task = BackendExecutor.submit(work, priority, onCancel);
+
+		// Set up the dialog. Cancelling the dialog cancels the request.
+		if( statusMessage != null )
+		{
+			this.dialog = ProgressDialog.show(context, context.getString(R.string.app_name), statusMessage, true, true, new DialogInterface.OnCancelListener()
+			{
+				public void onCancel( DialogInterface dialogInterface )
+				{
+					dialog = null;
+					task.cancel(true);
+				}
+			});
+		}
+
+		return this.task;
 	}
 }
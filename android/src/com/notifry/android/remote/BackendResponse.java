@@ -1,12 +1,20 @@
 package com.notifry.android.remote;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.database.SQLException;
 import android.util.Log;
 
 public class BackendResponse
@@ -17,17 +25,37 @@ public class BackendResponse
 	private String error = null;
 	private JSONObject json;
 	private BackendRequest request;
+	private boolean notModified = false;
+	private boolean retryable = false;
+	private String etag = null;
 
 	public BackendResponse( BackendRequest request, HttpResponse response )
 	{
 		this.request = request;
 		this.response = response;
 
+		Header etagHeader = response.getFirstHeader("ETag");
+		if( etagHeader != null )
+		{
+			this.etag = etagHeader.getValue();
+		}
+
 		// Determine if it was an error.
-		if( response.getStatusLine().getStatusCode() != 200 )
+		if( response.getStatusLine().getStatusCode() == 304 )
+		{
+			// Our copy is up to date - there's no body to parse.
+			this.notModified = true;
+			BackendClient.consume(response);
+		}
+		else if( response.getStatusLine().getStatusCode() != 200 )
 		{
 			// There was an error.
-			this.error = "" + response.getStatusLine().getStatusCode() + response.getStatusLine().getReasonPhrase();
+			int status = response.getStatusLine().getStatusCode();
+			this.error = "" + status + response.getStatusLine().getReasonPhrase();
+			// Server and login trouble is usually temporary.
+			this.retryable = status >= 500 || status == 302 || status == 401 || status == 403 || status == 408;
+			// Discard the body, so the connection can be reused.
+			BackendClient.consume(response);
 		}
 		else
 		{
@@ -37,26 +65,41 @@ public class BackendResponse
 
 	public void parseJson()
 	{
+		// If the request wants to decode the response itself, stream it.
+		if( this.request.getStreamHandler() != null )
+		{
+			this.parseJsonStream(this.request.getStreamHandler());
+			return;
+		}
+
 		// Parse the JSON from the body.
 		String jsonBody = "";
 
 		// Step 1: read it out from the input stream.
 		try
 		{
-            int ch;
-            StringBuffer sb = new StringBuffer();
-            InputStream is = this.response.getEntity().getContent();
-            while ((ch = is.read()) != -1)
-            {
-                    sb.append((char) ch);
-            }
-            jsonBody = sb.toString();
-            is.close();
+			Reader reader = this.openReader();
+			try
+			{
+				StringBuilder sb = new StringBuilder();
+				char[] buffer = new char[1024];
+				int count;
+				while( (count = reader.read(buffer)) != -1 )
+				{
+					sb.append(buffer, 0, count);
+				}
+				jsonBody = sb.toString();
+			}
+			finally
+			{
+				reader.close();
+			}
 		}
 		catch( IOException ex )
 		{
 			// Failed to read the response.
 			this.error = "Failed to read the HTTP response.";
+			this.retryable = true;
 			Log.e(BackendResponse.TAG, ex.toString());
 			return;
 		}
@@ -83,12 +126,102 @@ public class BackendResponse
 		}
 	}
 
+	/**
+	 * Parse the response as it is read, handing the top level values to the
+	 * stream handler. Anything it doesn't want ends up in the JSON object
+	 * as usual.
+	 * @param streamHandler
+	 */
+	private void parseJsonStream( BackendStreamHandler streamHandler )
+	{
+		try
+		{
+			JsonPullReader reader = new JsonPullReader(this.openReader());
+			try
+			{
+				JSONObject jsonData = new JSONObject();
+				reader.beginObject();
+				while( reader.hasNext() )
+				{
+					String name = reader.nextName();
+					if( name.equals("error") )
+					{
+						// Server error. Note it!
+						this.error = reader.nextString();
+						jsonData.put(name, this.error);
+					}
+					else if( this.error != null || !streamHandler.onValue(name, reader) )
+					{
+						jsonData.put(name, reader.nextValue());
+					}
+				}
+				reader.endObject();
+
+				this.json = jsonData;
+				if( this.error == null )
+				{
+					streamHandler.onComplete(this);
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch( IOException ex )
+		{
+			// Failed to read or parse the response.
+			this.error = "Failed to read the HTTP response.";
+			this.retryable = true;
+			Log.e(BackendResponse.TAG, ex.toString());
+		}
+		catch( JSONException ex )
+		{
+			// The response wasn't what we expected.
+			this.error = "Failed to parse the JSON from the server.";
+			Log.e(BackendResponse.TAG, "Failed to parse JSON response: " + ex.getMessage());
+		}
+		catch( SQLException ex )
+		{
+			// The handler couldn't store what it read.
+			this.error = "Failed to save the response.";
+			Log.e(BackendResponse.TAG, ex.toString());
+		}
+	}
+
+	/**
+	 * Open a buffered reader on the response body, decoding it with the
+	 * charset the server gave, or UTF-8 if it didn't give one. Gzipped
+	 * bodies are decompressed.
+	 * @return
+	 * @throws IOException
+	 */
+	private Reader openReader() throws IOException
+	{
+		HttpEntity entity = this.response.getEntity();
+		String charset = EntityUtils.getContentCharSet(entity);
+		if( charset == null )
+		{
+			charset = "UTF-8";
+		}
+
+		InputStream content = entity.getContent();
+		Header encoding = entity.getContentEncoding();
+		if( encoding != null && encoding.getValue().equalsIgnoreCase("gzip") )
+		{
+			content = new GZIPInputStream(content);
+		}
+
+		return new BufferedReader(new InputStreamReader(content, charset), 8192);
+	}
+
 	public BackendResponse( BackendRequest request, String error )
 	{
-		// Another kind of error.
+		// Another kind of error - we didn't get a response at all.
 		this.request = request;
 		this.response = null;
 		this.error = error;
+		this.retryable = true;
 	}
 
 	public boolean isError()
@@ -96,6 +229,36 @@ public class BackendResponse
 		return this.error != null;
 	}
 	
+	/**
+	 * Is this an error that might go away if the request is tried again later,
+	 * like a network or login failure? Errors the server reported in the
+	 * response itself are not.
+	 * @return
+	 */
+	public boolean isRetryable()
+	{
+		return this.error != null && this.retryable;
+	}
+
+	/**
+	 * Was this a conditional request, and the server's copy had not changed?
+	 * If so, there's no JSON.
+	 * @return
+	 */
+	public boolean isNotModified()
+	{
+		return this.notModified;
+	}
+
+	/**
+	 * Get the ETag the server gave for this response, or NULL if it didn't.
+	 * @return
+	 */
+	public String getETag()
+	{
+		return this.etag;
+	}
+
 	public JSONObject getJSON()
 	{
 		return this.json;
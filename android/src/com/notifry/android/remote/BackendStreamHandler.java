@@ -0,0 +1,48 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.notifry.android.remote;
+
+import java.io.IOException;
+
+import org.json.JSONException;
+
+/**
+ * Decodes parts of a backend response as they are read off the network,
+ * instead of waiting for the whole body and building a JSONObject tree.
+ * Called on the request's background thread.
+ */
+public interface BackendStreamHandler
+{
+	/**
+	 * Called for each top level value in the response.
+	 * @param name The name of the value.
+	 * @param reader The reader, positioned at the value.
+	 * @return True if the value was read from the reader, false to leave it for the response's JSONObject.
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	public boolean onValue( String name, JsonPullReader reader ) throws IOException, JSONException;
+
+	/**
+	 * Called once the whole response has been read, if it was not an error.
+	 * @param response The response, for its headers.
+	 * @throws JSONException If the response was missing something.
+	 */
+	public void onComplete( BackendResponse response ) throws JSONException;
+}
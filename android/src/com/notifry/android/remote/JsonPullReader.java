@@ -0,0 +1,544 @@
+/**
+ * Notifry for Android.
+ * 
+ * Copyright 2011 Daniel Foote
+ *
+ * Licensed under the Apache License, Version 2.0 (the 'License');
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.notifry.android.remote;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A small pull parser for JSON, so large responses can be decoded as they
+ * arrive rather than being read into memory and turned into a tree first.
+ * The caller walks the document with beginObject()/nextName()/nextString()
+ * and friends, in the order the values appear.
+ */
+public class JsonPullReader
+{
+	/**
+	 * The kinds of token that peek() can return.
+	 */
+	public enum Token
+	{
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+	}
+
+	private static final int SCOPE_DOCUMENT = 0;
+	private static final int SCOPE_OBJECT = 1;
+	private static final int SCOPE_ARRAY = 2;
+
+	private final Reader in;
+	private final char[] buffer = new char[1024];
+	private int position = 0;
+	private int limit = 0;
+
+	// The scopes we are nested in, and whether we are expecting the first item in each.
+	private final ArrayList<Integer> scopes = new ArrayList<Integer>();
+	private boolean first = true;
+	private boolean expectingValue = false;
+
+	// The next token, once peek() has read it.
+	private Token peeked = null;
+	private String peekedValue = null;
+
+	public JsonPullReader( Reader in )
+	{
+		this.in = in;
+		this.scopes.add(SCOPE_DOCUMENT);
+	}
+
+	/**
+	 * Find out what the next token is, without consuming it.
+	 * @return
+	 * @throws IOException
+	 */
+	public Token peek() throws IOException
+	{
+		if( this.peeked != null )
+		{
+			return this.peeked;
+		}
+
+		int scope = this.scopes.get(this.scopes.size() - 1);
+		int c = this.nextNonWhitespace();
+
+		if( scope == SCOPE_OBJECT && !this.expectingValue )
+		{
+			// Expecting a name, or the end of the object.
+			if( c == '}' )
+			{
+				return this.setPeeked(Token.END_OBJECT, null);
+			}
+			if( !this.first )
+			{
+				if( c != ',' )
+				{
+					throw this.syntaxError("Expected ',' or '}'");
+				}
+				c = this.nextNonWhitespace();
+			}
+			if( c != '"' )
+			{
+				throw this.syntaxError("Expected a name");
+			}
+			String name = this.readString();
+			if( this.nextNonWhitespace() != ':' )
+			{
+				throw this.syntaxError("Expected ':'");
+			}
+			return this.setPeeked(Token.NAME, name);
+		}
+
+		if( scope == SCOPE_ARRAY )
+		{
+			if( c == ']' )
+			{
+				return this.setPeeked(Token.END_ARRAY, null);
+			}
+			if( !this.first )
+			{
+				if( c != ',' )
+				{
+					throw this.syntaxError("Expected ',' or ']'");
+				}
+				c = this.nextNonWhitespace();
+			}
+		}
+
+		if( scope == SCOPE_DOCUMENT && !this.first )
+		{
+			if( c == -1 )
+			{
+				return this.setPeeked(Token.END_DOCUMENT, null);
+			}
+			throw this.syntaxError("Expected the end of the document");
+		}
+
+		// So, a value.
+		switch( c )
+		{
+			case '{':
+				return this.setPeeked(Token.BEGIN_OBJECT, null);
+			case '[':
+				return this.setPeeked(Token.BEGIN_ARRAY, null);
+			case '"':
+				return this.setPeeked(Token.STRING, this.readString());
+			case -1:
+				throw this.syntaxError("Unexpected end of the document");
+			default:
+				this.position--;
+				String literal = this.readLiteral();
+				if( literal.equals("true") || literal.equals("false") )
+				{
+					return this.setPeeked(Token.BOOLEAN, literal);
+				}
+				if( literal.equals("null") )
+				{
+					return this.setPeeked(Token.NULL, literal);
+				}
+				if( literal.length() > 0 && (literal.charAt(0) == '-' || Character.isDigit(literal.charAt(0))) )
+				{
+					return this.setPeeked(Token.NUMBER, literal);
+				}
+				throw this.syntaxError("Unexpected value '" + literal + "'");
+		}
+	}
+
+	/**
+	 * Are there more items in the current object or array?
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean hasNext() throws IOException
+	{
+		Token token = this.peek();
+		return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+	}
+
+	public void beginObject() throws IOException
+	{
+		this.expect(Token.BEGIN_OBJECT);
+		this.scopes.add(SCOPE_OBJECT);
+		this.first = true;
+		this.expectingValue = false;
+	}
+
+	public void endObject() throws IOException
+	{
+		this.expect(Token.END_OBJECT);
+		this.endScope();
+	}
+
+	public void beginArray() throws IOException
+	{
+		this.expect(Token.BEGIN_ARRAY);
+		this.scopes.add(SCOPE_ARRAY);
+		this.first = true;
+		this.expectingValue = false;
+	}
+
+	public void endArray() throws IOException
+	{
+		this.expect(Token.END_ARRAY);
+		this.endScope();
+	}
+
+	public String nextName() throws IOException
+	{
+		String name = this.expect(Token.NAME);
+		this.expectingValue = true;
+		return name;
+	}
+
+	/**
+	 * Read a string value. Numbers and booleans are returned as their text.
+	 * @return
+	 * @throws IOException
+	 */
+	public String nextString() throws IOException
+	{
+		Token token = this.peek();
+		if( token != Token.STRING && token != Token.NUMBER && token != Token.BOOLEAN )
+		{
+			throw this.syntaxError("Expected a string but was " + token);
+		}
+		return this.consumeValue();
+	}
+
+	/**
+	 * Read a long value. Like JSONObject.getLong(), strings that contain a
+	 * number are accepted too - the backend sends datastore IDs as strings.
+	 * @return
+	 * @throws IOException
+	 */
+	public long nextLong() throws IOException
+	{
+		Token token = this.peek();
+		if( token != Token.NUMBER && token != Token.STRING )
+		{
+			throw this.syntaxError("Expected a number but was " + token);
+		}
+		String value = this.peekedValue;
+		long result;
+		try
+		{
+			result = Long.parseLong(value);
+		}
+		catch( NumberFormatException e )
+		{
+			try
+			{
+				result = (long) Double.parseDouble(value);
+			}
+			catch( NumberFormatException e2 )
+			{
+				throw this.syntaxError("Expected a number but was '" + value + "'");
+			}
+		}
+		this.consumeValue();
+		return result;
+	}
+
+	/**
+	 * Read a boolean value. The strings "true" and "false" are accepted too.
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean nextBoolean() throws IOException
+	{
+		Token token = this.peek();
+		if( (token == Token.BOOLEAN || token == Token.STRING) && this.peekedValue.equalsIgnoreCase("true") )
+		{
+			this.consumeValue();
+			return true;
+		}
+		if( (token == Token.BOOLEAN || token == Token.STRING) && this.peekedValue.equalsIgnoreCase("false") )
+		{
+			this.consumeValue();
+			return false;
+		}
+		throw this.syntaxError("Expected a boolean but was " + token);
+	}
+
+	public void nextNull() throws IOException
+	{
+		this.expect(Token.NULL);
+		this.valueDone();
+	}
+
+	/**
+	 * Skip over the next value, including everything nested inside it.
+	 * @throws IOException
+	 */
+	public void skipValue() throws IOException
+	{
+		int depth = 0;
+		do
+		{
+			Token token = this.peek();
+			switch( token )
+			{
+				case BEGIN_OBJECT:
+					this.beginObject();
+					depth++;
+					break;
+				case BEGIN_ARRAY:
+					this.beginArray();
+					depth++;
+					break;
+				case END_OBJECT:
+					this.endObject();
+					depth--;
+					break;
+				case END_ARRAY:
+					this.endArray();
+					depth--;
+					break;
+				case NAME:
+					this.nextName();
+					break;
+				default:
+					this.consumeValue();
+					break;
+			}
+		}
+		while( depth > 0 );
+	}
+
+	/**
+	 * Read the next value into the org.json form - a JSONObject, JSONArray,
+	 * String, Long, Double, Boolean or JSONObject.NULL.
+	 * @return
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	public Object nextValue() throws IOException, JSONException
+	{
+		switch( this.peek() )
+		{
+			case BEGIN_OBJECT:
+				JSONObject object = new JSONObject();
+				this.beginObject();
+				while( this.hasNext() )
+				{
+					String name = this.nextName();
+					object.put(name, this.nextValue());
+				}
+				this.endObject();
+				return object;
+			case BEGIN_ARRAY:
+				JSONArray array = new JSONArray();
+				this.beginArray();
+				while( this.hasNext() )
+				{
+					array.put(this.nextValue());
+				}
+				this.endArray();
+				return array;
+			case BOOLEAN:
+				return this.nextBoolean();
+			case NULL:
+				this.nextNull();
+				return JSONObject.NULL;
+			case NUMBER:
+				String number = this.peekedValue;
+				if( number.indexOf('.') == -1 && number.indexOf('e') == -1 && number.indexOf('E') == -1 )
+				{
+					return this.nextLong();
+				}
+				this.consumeValue();
+				return Double.valueOf(number);
+			case STRING:
+				return this.nextString();
+			default:
+				throw this.syntaxError("Expected a value but was " + this.peek());
+		}
+	}
+
+	public void close() throws IOException
+	{
+		this.in.close();
+	}
+
+	private Token setPeeked( Token token, String value )
+	{
+		this.peeked = token;
+		this.peekedValue = value;
+		return token;
+	}
+
+	private String expect( Token expected ) throws IOException
+	{
+		Token token = this.peek();
+		if( token != expected )
+		{
+			throw this.syntaxError("Expected " + expected + " but was " + token);
+		}
+		String value = this.peekedValue;
+		this.peeked = null;
+		this.peekedValue = null;
+		return value;
+	}
+
+	private String consumeValue()
+	{
+		String value = this.peekedValue;
+		this.peeked = null;
+		this.peekedValue = null;
+		this.valueDone();
+		return value;
+	}
+
+	private void valueDone()
+	{
+		this.first = false;
+		this.expectingValue = false;
+	}
+
+	private void endScope()
+	{
+		this.scopes.remove(this.scopes.size() - 1);
+		this.valueDone();
+	}
+
+	private boolean fill() throws IOException
+	{
+		this.position = 0;
+		this.limit = this.in.read(this.buffer, 0, this.buffer.length);
+		if( this.limit == -1 )
+		{
+			this.limit = 0;
+			return false;
+		}
+		return true;
+	}
+
+	private int read() throws IOException
+	{
+		if( this.position == this.limit && !this.fill() )
+		{
+			return -1;
+		}
+		return this.buffer[this.position++];
+	}
+
+	private int nextNonWhitespace() throws IOException
+	{
+		int c;
+		do
+		{
+			c = this.read();
+		}
+		while( c == ' ' || c == '\t' || c == '\n' || c == '\r' );
+		return c;
+	}
+
+	private String readString() throws IOException
+	{
+		StringBuilder result = new StringBuilder();
+		while( true )
+		{
+			int c = this.read();
+			switch( c )
+			{
+				case -1:
+					throw this.syntaxError("Unterminated string");
+				case '"':
+					return result.toString();
+				case '\\':
+					c = this.read();
+					switch( c )
+					{
+						case 'b':
+							result.append('\b');
+							break;
+						case 'f':
+							result.append('\f');
+							break;
+						case 'n':
+							result.append('\n');
+							break;
+						case 'r':
+							result.append('\r');
+							break;
+						case 't':
+							result.append('\t');
+							break;
+						case 'u':
+							char[] hex = new char[4];
+							for( int i = 0; i < 4; i++ )
+							{
+								int h = this.read();
+								if( h == -1 )
+								{
+									throw this.syntaxError("Unterminated escape sequence");
+								}
+								hex[i] = (char) h;
+							}
+							try
+							{
+								result.append((char) Integer.parseInt(new String(hex), 16));
+							}
+							catch( NumberFormatException e )
+							{
+								throw this.syntaxError("Invalid escape sequence");
+							}
+							break;
+						case -1:
+							throw this.syntaxError("Unterminated escape sequence");
+						default:
+							result.append((char) c);
+							break;
+					}
+					break;
+				default:
+					result.append((char) c);
+					break;
+			}
+		}
+	}
+
+	private String readLiteral() throws IOException
+	{
+		StringBuilder result = new StringBuilder();
+		while( true )
+		{
+			int c = this.read();
+			if( c == -1 )
+			{
+				break;
+			}
+			if( c == ',' || c == '}' || c == ']' || c == ':' || c == ' ' || c == '\t' || c == '\n' || c == '\r' )
+			{
+				this.position--;
+				break;
+			}
+			result.append((char) c);
+		}
+		return result.toString();
+	}
+
+	private IOException syntaxError( String message )
+	{
+		return new IOException("Invalid JSON: " + message);
+	}
+}
@@ -27,6 +27,7 @@ from model.UserMessages import UserMessages
 from model.SourcePointer import SourcePointer
 import datetime
 from lib.AC2DM import AC2DM
+from lib.GzipRequest import GzipRequest
 from google.appengine.ext import db
 
 urls = (
@@ -58,6 +59,17 @@ def login_required():
 			renderer.addData('error', 'Not logged in.')
 			return renderer.render('apionly.html')
 
+# Parse a sync timestamp given by a device, which is one we gave it earlier.
+# A little overlap is allowed for changes that were being saved at the time.
+SYNC_OVERLAP = datetime.timedelta(minutes=1)
+def parse_sync_timestamp(value):
+	if not value:
+		return None
+	try:
+		return datetime.datetime.strptime(value[:19], '%Y-%m-%dT%H:%M:%S') - SYNC_OVERLAP
+	except ValueError, ex:
+		return None
+
 # Front page.
 class index:
 	def GET(self):
@@ -226,6 +238,8 @@ class devices:
 		return device
 
 # Sources list.
+# The most sources that can be fetched in one request.
+MAX_SOURCE_IDS = 1000
 class sources:
 	def GET(self, action):
 		if action == 'create' or action == 'edit':
@@ -259,10 +273,39 @@ class sources:
 
 	def POST(self, action):
 		if action == 'list':
-			sources = UserSources.get_user_sources(users.get_current_user())
+			# If the device gives the time it last synced, only send what changed since then.
+			input = web.input(since = None)
+			now = datetime.datetime.now()
+			collection = UserSources.get_user_source_collection(users.get_current_user())
+
+			# If the device already has this version of the list, there's nothing to send.
+			etag = collection.etag()
+			if renderer.get_mode() == 'json':
+				if web.ctx.env.get('HTTP_IF_NONE_MATCH') == etag:
+					raise web.notmodified()
+				web.header('ETag', etag)
+
+			since = parse_sync_timestamp(input.since)
+			if since and collection.can_sync_since(since):
+				sources, deleted = collection.get_changes_since(since)
+				renderer.addData('full', False)
+			else:
+				sources = collection.get_sources()
+				deleted = []
+				renderer.addData('full', True)
 			renderer.addDataList('sources', sources)
+			renderer.addDataList('deleted', deleted)
+			renderer.addData('sync_timestamp', now)
 			return renderer.render('sources/list.html')
 		elif action == 'get':
+			input = web.input(ids = None)
+			if input.ids:
+				# Several sources at once, as a comma separated list of IDs.
+				# Any that don't exist any more are listed as missing.
+				sources, missing = self.get_sources(input.ids)
+				renderer.addDataList('sources', sources)
+				renderer.addDataList('missing', missing)
+				return renderer.render('apionly.html')
 			source = self.get_source()
 			renderer.addData('source', source)
 			return renderer.render('sources/detail.html')
@@ -386,6 +429,28 @@ class sources:
 			source = UserSource.factory(collection)
 			return source
 
+	def get_sources(self, ids):
+		# Helper function to load several of the user's sources by ID in one go.
+		# Returns the sources found, and the IDs that were not found.
+		collection = UserSources.get_user_source_collection(users.get_current_user())
+		try:
+			ids = [long(source_id) for source_id in ids.split(',') if source_id]
+		except ValueError:
+			raise web.badrequest()
+		if len(ids) > MAX_SOURCE_IDS:
+			raise web.badrequest()
+
+		sources = []
+		missing = []
+		user_id = users.get_current_user().user_id()
+		for source_id, source in zip(ids, UserSource.get_by_id(ids, collection)):
+			if source and source.owner.user_id() == user_id:
+				sources.append(source)
+			else:
+				missing.append(source_id)
+
+		return sources, missing
+
 	def get_form(self):
 		# Source editor form.
 		source_editor_form = web.form.Form(
@@ -537,4 +602,4 @@ def server_error_handler():
 app = web.application(urls, globals())
 app.notfound = not_found_handler
 #app.internalerror = server_error_handler()
-main = app.cgirun()
+main = app.cgirun(GzipRequest)
@@ -0,0 +1,48 @@
+# Notifry - Google App Engine backend
+#
+# Copyright 2011 Daniel Foote
+#
+# Licensed under the Apache License, Version 2.0 (the 'License');
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an 'AS IS' BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+import gzip
+import StringIO
+
+# Don't inflate request bodies past this size.
+MAX_INFLATED_SIZE = 1024 * 1024
+
+# WSGI middleware that accepts gzipped request bodies (Content-Encoding: gzip),
+# which the Android client sends for large requests. Responses are gzipped by
+# App Engine itself, for clients that ask for it.
+class GzipRequest:
+	def __init__(self, app):
+		self.app = app
+
+	def __call__(self, environ, start_response):
+		if environ.get('HTTP_CONTENT_ENCODING', '').lower() == 'gzip':
+			length = int(environ.get('CONTENT_LENGTH') or 0)
+			body = environ['wsgi.input'].read(length)
+			try:
+				inflated = gzip.GzipFile(fileobj=StringIO.StringIO(body)).read(MAX_INFLATED_SIZE + 1)
+			except (IOError, EOFError):
+				start_response('400 Bad Request', [('Content-Type', 'text/plain')])
+				return ['Invalid gzip request body.']
+
+			if len(inflated) > MAX_INFLATED_SIZE:
+				start_response('413 Request Entity Too Large', [('Content-Type', 'text/plain')])
+				return ['Request body too large.']
+
+			environ['wsgi.input'] = StringIO.StringIO(inflated)
+			environ['CONTENT_LENGTH'] = str(len(inflated))
+			del environ['HTTP_CONTENT_ENCODING']
+
+		return self.app(environ, start_response)
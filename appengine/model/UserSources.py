@@ -16,10 +16,21 @@
 
 from google.appengine.ext import db
 from model.UserSource import UserSource
+import datetime
+
+# How long to remember deleted sources for, so devices can sync just the changes.
+TOMBSTONE_LIFETIME = datetime.timedelta(days=30)
 
 class UserSources(db.Model):
 	sources = db.ListProperty(int)
 	owner = db.UserProperty()
+	# Deleted source IDs, and when they were deleted.
+	deleted = db.ListProperty(int)
+	deleted_times = db.ListProperty(datetime.datetime)
+	# Deletions before this time have been forgotten.
+	tombstones_from = db.DateTimeProperty()
+	# Incremented whenever a source is added, changed or removed.
+	version = db.IntegerProperty(default=0)
 
 	def dict(self):
 		result = {
@@ -40,6 +51,7 @@ class UserSources(db.Model):
 		return UserSource.get_by_id(self.sources, self)
 
 	def add_source(self, source):
+		self.bump_version()
 		id = source.key().id()
 		if self.sources:
 			if not id in self.sources:
@@ -49,6 +61,7 @@ class UserSources(db.Model):
 			self.sources.append(id)
 
 	def remove_source(self, source):
+		self.bump_version()
 		if self.sources:
 			try:
 				self.sources.remove(source.key().id())
@@ -56,6 +69,47 @@ class UserSources(db.Model):
 				# We don't have that source in the list.
 				pass
 
+		# Remember the deletion, and forget old ones.
+		now = datetime.datetime.now()
+		cutoff = now - TOMBSTONE_LIFETIME
+		deleted = []
+		deleted_times = []
+		for id, deleted_time in zip(self.deleted, self.deleted_times):
+			if deleted_time >= cutoff:
+				deleted.append(id)
+				deleted_times.append(deleted_time)
+			else:
+				self.tombstones_from = cutoff
+		deleted.append(source.key().id())
+		deleted_times.append(now)
+		self.deleted = deleted
+		self.deleted_times = deleted_times
+
+	def bump_version(self):
+		self.version = (self.version or 0) + 1
+
+	def etag(self):
+		# An ETag for the source list, which changes whenever any source does.
+		return '"sources-%d"' % (self.version or 0)
+
+	def can_sync_since(self, since):
+		# True if we still know about every deletion since the given time.
+		if self.tombstones_from and since < self.tombstones_from:
+			return False
+		return True
+
+	def get_changes_since(self, since):
+		# The sources changed since the given time, and the IDs of those deleted since then.
+		changed = []
+		for source in self.get_sources():
+			if source and (source.updated is None or source.updated >= since):
+				changed.append(source)
+		deleted = []
+		for id, deleted_time in zip(self.deleted, self.deleted_times):
+			if deleted_time >= since:
+				deleted.append(id)
+		return changed, deleted
+
 	@staticmethod
 	def key_for(owner):
 		return "sources:%s" % owner.nickname()
@@ -0,0 +1,145 @@
+#!/usr/bin/env python
+
+# Notifry - wire size check for the backend.
+# 
+# Copyright 2011 Daniel Foote
+#
+# Licensed under the Apache License, Version 2.0 (the 'License');
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an 'AS IS' BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+#
+# This script sends the source list request the Android client makes, once
+# plainly and once with gzip as the client does it, and reports the bytes on
+# the wire for each. By default it talks to the local dev server as the
+# dev server's test user; log in there and add some sources first.
+#
+# Note that the dev server never gzips responses - App Engine's front end
+# does that. Point it at a deployed backend (-b, with -c for the login
+# cookie) to measure the response saving.
+#
+# Return codes:
+# 0 - Success
+# 1 - HTTP error
+
+import getopt
+import gzip
+import sys
+
+try:
+	import httplib
+	from urllib import urlencode
+	from urlparse import urlparse
+	from StringIO import StringIO as BytesIO
+except ImportError:
+	import http.client as httplib
+	from urllib.parse import urlencode
+	from urllib.parse import urlparse
+	from io import BytesIO
+
+# Configuration.
+BACKEND = 'http://localhost:8080'
+DEV_LOGIN_COOKIE = 'dev_appserver_login="test@example.com:False:185804764220139124118"'
+# The same as the Android client - App Engine wants gzip in the user agent too.
+GZIP_USER_AGENT = 'Notifry Android (gzip)'
+PLAIN_USER_AGENT = 'Notifry Android'
+
+def usage():
+	print("Usage: %s [-b backend] [-c cookie]" % sys.argv[0])
+	print("Defaults to %s, logged in as the dev server's test user." % BACKEND)
+	sys.exit()
+
+def gzip_bytes(data):
+	buffer = BytesIO()
+	stream = gzip.GzipFile(fileobj = buffer, mode = 'wb')
+	stream.write(data)
+	stream.close()
+	return buffer.getvalue()
+
+def gunzip_bytes(data):
+	return gzip.GzipFile(fileobj = BytesIO(data)).read()
+
+# Send the source list request, and count what goes over the wire.
+def measure(backend, cookie, compress):
+	url = urlparse(backend)
+	if url.scheme == 'https':
+		connection = httplib.HTTPSConnection(url.netloc)
+	else:
+		connection = httplib.HTTPConnection(url.netloc)
+
+	body = urlencode({'format': 'json'}).encode('ascii')
+	headers = {'Content-Type': 'application/x-www-form-urlencoded', 'Cookie': cookie}
+	if compress:
+		# The client only gzips bodies of 1KB or more, but this one is
+		# always gzipped so that the backend's handling of it is checked.
+		body = gzip_bytes(body)
+		headers['Content-Encoding'] = 'gzip'
+		headers['Accept-Encoding'] = 'gzip'
+		headers['User-Agent'] = GZIP_USER_AGENT
+	else:
+		headers['User-Agent'] = PLAIN_USER_AGENT
+
+	connection.request('POST', url.path + '/sources/list', body, headers)
+	response = connection.getresponse()
+	# httplib doesn't decompress, so this is what came over the wire.
+	data = response.read()
+	connection.close()
+
+	if response.status != 200:
+		print("Request failed: %d %s" % (response.status, response.reason))
+		sys.exit(1)
+
+	encoding = response.getheader('Content-Encoding', '')
+	decoded = data
+	if encoding == 'gzip':
+		decoded = gunzip_bytes(data)
+	headerBytes = 0
+	for name, value in response.getheaders():
+		headerBytes += len(name) + len(value) + 4
+
+	return {
+		'request': len(body),
+		'response': len(data),
+		'headers': headerBytes,
+		'decoded': len(decoded),
+		'encoding': encoding
+	}
+
+# Parse our arguments.
+optlist, args = getopt.getopt(sys.argv[1:], 'b:c:h')
+
+backend = BACKEND
+cookie = DEV_LOGIN_COOKIE
+for key, value in optlist:
+	if key == '-b':
+		backend = value.rstrip('/')
+	elif key == '-c':
+		cookie = value
+	elif key == '-h':
+		usage()
+
+try:
+	plain = measure(backend, cookie, False)
+	compressed = measure(backend, cookie, True)
+except (httplib.HTTPException, IOError):
+	print("Failed to make request to the server: %s" % sys.exc_info()[1])
+	sys.exit(1)
+
+print("%-6s %14s %14s %17s %8s" % ('', 'request body', 'response body', 'response headers', 'total'))
+for name, result in (('plain', plain), ('gzip', compressed)):
+	total = result['request'] + result['response'] + result['headers']
+	result['total'] = total
+	print("%-6s %14d %14d %17d %8d" % (name, result['request'], result['response'], result['headers'], total))
+
+saved = plain['total'] - compressed['total']
+print("Saved %d of %d bytes (%.1f%%) for a %d byte source list." % (saved, plain['total'], 100.0 * saved / plain['total'], plain['decoded']))
+if compressed['encoding'] != 'gzip':
+	print("The server did not gzip the response - the dev server never does, so use -b with a deployed backend to measure that.")